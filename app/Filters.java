@@ -0,0 +1,47 @@
+import play.api.mvc.EssentialFilter;
+import play.api.mvc.RequestHeader;
+import play.api.mvc.ResponseHeader;
+import play.filters.gzip.GzipFilter;
+import play.filters.gzip.GzipFilterConfig;
+import play.http.HttpFilters;
+import play.mvc.Http;
+import scala.Option;
+import scala.runtime.AbstractFunction2;
+
+import javax.inject.Inject;
+
+/**
+ * HTTP filters applied to every response.
+ * Pages are gzipped on the fly; assets already have a precompressed variant and are left alone.
+ * Streamed responses (chunked, such as the CSV export and the import progress, and server-sent
+ * events) are sent as they are: gzip would hold their chunks back until its buffer fills.
+ */
+public class Filters implements HttpFilters {
+
+    private final GzipFilter gzipFilter;
+
+    @Inject
+    public Filters(GzipFilterConfig config) {
+        this.gzipFilter = new GzipFilter(new GzipFilterConfig(config.bufferSize(), config.chunkedThreshold(),
+                new AbstractFunction2<RequestHeader, ResponseHeader, Object>() {
+                    @Override
+                    public Object apply(RequestHeader request, ResponseHeader response) {
+                        return !isStreamed(response);
+                    }
+                }));
+    }
+
+    static boolean isStreamed(ResponseHeader response) {
+        Option<String> encoding = response.headers().get(Http.HeaderNames.TRANSFER_ENCODING);
+        if (encoding.isDefined() && "chunked".equalsIgnoreCase(encoding.get())) {
+            return true;
+        }
+        Option<String> type = response.headers().get(Http.HeaderNames.CONTENT_TYPE);
+        return type.isDefined() && type.get().startsWith("text/event-stream");
+    }
+
+    @Override
+    public EssentialFilter[] filters() {
+        return new EssentialFilter[]{gzipFilter};
+    }
+}
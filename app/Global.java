@@ -0,0 +1,86 @@
+import com.avaje.ebean.Ebean;
+import models.LocalUser;
+import models.Settings;
+import models.TokenPurger;
+import models.acceptto.MfaClient;
+import models.acceptto.MfaStatusHub;
+import models.audit.AuditLog;
+import models.auth.PendingAuth;
+import models.auth.QrChannels;
+import models.repositories.JdbcExecution;
+import models.utils.Hash;
+import models.utils.Startup;
+import play.Application;
+import play.GlobalSettings;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Application lifecycle hooks.
+ */
+public class Global extends GlobalSettings {
+
+    @Override
+    public void onStart(final Application app) {
+        Startup startup = new Startup();
+        startup.run("settings", new Runnable() {
+            @Override
+            public void run() {
+                Settings.load(app.configuration());
+            }
+        });
+
+        // Alone, before the rest: the bcrypt cost is measured, and work on other threads would
+        // slow the measure down and pick a cost too low.
+        startup.run("bcrypt", new Runnable() {
+            @Override
+            public void run() {
+                Hash.start();
+                Hash.pool();
+            }
+        });
+
+        // The other slow pieces don't depend on each other
+        Map<String, Runnable> slow = new LinkedHashMap<String, Runnable>();
+        slow.put("mfa-client", new Runnable() {
+            @Override
+            public void run() {
+                MfaClient.get();
+            }
+        });
+        slow.put("ebean", new Runnable() {
+            @Override
+            public void run() {
+                // first query: opens the connection pool and builds the LocalUser descriptors
+                Ebean.find(LocalUser.class).setMaxRows(1).findList();
+            }
+        });
+        startup.parallel(slow);
+
+        startup.run("schedulers", new Runnable() {
+            @Override
+            public void run() {
+                PendingAuth.start();
+                QrChannels.start();
+                MfaStatusHub.start();
+                TokenPurger.start();
+                AuditLog.start();
+            }
+        });
+        startup.report();
+    }
+
+    @Override
+    public void onStop(Application app) {
+        AuditLog.stop();
+        TokenPurger.stop();
+        MfaStatusHub.stop();
+        QrChannels.stop();
+        PendingAuth.stop();
+        MfaClient.shutdown();
+        Hash.stop();
+        JdbcExecution.reset();
+        Settings.unload();
+    }
+}
@@ -1,17 +1,20 @@
 package controllers;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import models.LocalUser;
-import models.utils.AppException;
+import models.Settings;
+import models.UserPrincipal;
+import models.audit.AuditLog;
+import models.auth.PendingAuth;
+import models.utils.OverloadedException;
 import play.Logger;
-import play.Play;
 import play.data.Form;
 import play.data.validation.Constraints;
 import play.i18n.Messages;
 import play.libs.F.*;
-import play.libs.ws.*;
 import play.mvc.Controller;
 import play.mvc.Result;
+import play.twirl.api.Content;
+import play.twirl.api.Html;
 import views.html.index;
 
 import static play.data.Form.form;
@@ -30,36 +33,52 @@ public class Application extends Controller {
             routes.Dashboard.index()
     );
 
-    public final static String appUID = Play.application().configuration().getString("mfa.app.uid");
-    public final static String appSecret = Play.application().configuration().getString("mfa.app.secret");
-
     /**
      * Display the login page or dashboard if connected
      *
      * @return login page or dashboard
      */
-    public static Result index() {
+    public static Promise<Result> index() {
         // Check that the email matches a confirmed user before we redirect
-        String email = ctx().session().get("email");
-        if (email != null) {
-            LocalUser user = LocalUser.findByEmail(email);
-            if (user != null && user.validated && (user.mfa_email == null || (user.mfa_authenticated != null && user.mfa_authenticated))) {
-                return GO_DASHBOARD;
-            } else {
-                if (user != null && user.mfa_email != null && (user.mfa_authenticated == null || !user.mfa_authenticated)) {
+        final String email = ctx().session().get("email");
+        if (email == null) {
+            return Promise.pure(loginPage());
+        }
+        return Secured.loadUser(ctx()).map(new Function<UserPrincipal, Result>() {
+            @Override
+            public Result apply(UserPrincipal user) {
+                boolean mfaPassed = Secured.mfaPassed(ctx());
+                if (user != null && user.validated && mfaPassed) {
+                    return GO_DASHBOARD;
+                }
+                if (user != null && !mfaPassed) {
                     Logger.debug("User mfa access enabled but is not authenticated");
                 }
 
                 Logger.debug("Clearing invalid session credentials");
+                PendingAuth.clear(session());
                 session().clear();
+                return loginPage();
             }
-        }
+        });
+    }
 
-        return ok(index.render(form(Register.class), form(Login.class), appUID));
+    private static Result loginPage() {
+        if (flash().isEmpty()) {
+            // Anonymous and without messages: the page only depends on the language
+            return PageCache.cached("index." + lang().code(), "no-cache", new Function0<Html>() {
+                @Override
+                public Html apply() {
+                    return index.render(form(Register.class), form(Login.class), Settings.get().mfaAppUid);
+                }
+            });
+        }
+        return ok(index.render(form(Register.class), form(Login.class), Settings.get().mfaAppUid));
     }
 
     /**
      * Login class used by Login Form.
+     * The credentials themselves are verified asynchronously in {@link #authenticate()}.
      */
     public static class Login {
 
@@ -68,27 +87,6 @@ public class Application extends Controller {
         @Constraints.Required
         public String password;
 
-        /**
-         * Validate the authentication.
-         *
-         * @return null if validation ok, string with details otherwise
-         */
-        public String validate() {
-
-            LocalUser user = null;
-            try {
-                user = LocalUser.authenticate(email, password);
-            } catch (AppException e) {
-                return Messages.get("error.technical");
-            }
-            if (user == null) {
-                return Messages.get("invalid.user.or.password");
-            } else if (!user.validated) {
-                return Messages.get("account.not.validated.check.mail");
-            }
-            return null;
-        }
-
     }
 
     public static class Register {
@@ -134,26 +132,83 @@ public class Application extends Controller {
      * @return Dashboard if auth OK or login form if auth KO
      */
     public static Promise<Result> authenticate() {
-        Form<Login> loginForm = form(Login.class).bindFromRequest();
+        final Form<Login> loginForm = form(Login.class).bindFromRequest();
 
-        Form<Register> registerForm = form(Register.class);
+        final Form<Register> registerForm = form(Register.class);
 
         if (loginForm.hasErrors()) {
-            return Promise.pure((Result) badRequest(index.render(registerForm, loginForm, appUID)));
-        } else {
+            return Promise.pure((Result) badRequest(index.render(registerForm, loginForm, Settings.get().mfaAppUid)));
+        }
 
-            session("email", loginForm.get().email);
+        final String email = loginForm.get().email;
 
-            final LocalUser user = LocalUser.findByEmail(loginForm.get().email);
-            if (user.mfa_email != null) {
-                user.mfa_authenticated = false;
-                user.save();
+        long retryAfter = RateLimits.acquire(request(), RateLimits.LOGIN_IP, RateLimits.LOGIN_ACCOUNT, email);
+        if (retryAfter > 0) {
+            AuditLog.record(request(), AuditLog.Type.LOGIN, email, "rate_limited");
+            loginForm.reject(Messages.get("error.tooManyAttempts"));
+            return Promise.pure(tooManyAttempts(retryAfter, index.render(registerForm, loginForm, Settings.get().mfaAppUid)));
+        }
+
+        return LocalUser.authenticate(email, loginForm.get().password).flatMap(new Function<LocalUser, Promise<Result>>() {
+            @Override
+            public Promise<Result> apply(LocalUser user) throws Throwable {
+                if (user == null) {
+                    AuditLog.record(request(), AuditLog.Type.LOGIN, email, "failed");
+                    loginForm.reject(Messages.get("invalid.user.or.password"));
+                    return Promise.pure((Result) badRequest(index.render(registerForm, loginForm, Settings.get().mfaAppUid)));
+                } else if (!user.validated) {
+                    AuditLog.record(request(), AuditLog.Type.LOGIN, email, "not_validated");
+                    loginForm.reject(Messages.get("account.not.validated.check.mail"));
+                    return Promise.pure((Result) badRequest(index.render(registerForm, loginForm, Settings.get().mfaAppUid)));
+                }
+
+                session("email", email);
+
+                if (user.mfa_email != null) {
+                    AuditLog.record(request(), AuditLog.Type.LOGIN, email, "mfa_required");
+                    PendingAuth.begin(session(), email);
 
-                return Mfa.accepttoAuthenticate(user, false);
+                    return Mfa.accepttoAuthenticate(user.mfa_email, false);
+                }
+
+                AuditLog.record(request(), AuditLog.Type.LOGIN, email, "success");
+                return Promise.pure(GO_DASHBOARD);
             }
+        }).recover(new Function<Throwable, Result>() {
+            @Override
+            public Result apply(Throwable throwable) throws Throwable {
+                if (throwable instanceof OverloadedException) {
+                    AuditLog.record(request(), AuditLog.Type.LOGIN, email, "overloaded");
+                    loginForm.reject(Messages.get("error.busy"));
+                    return overloaded((OverloadedException) throwable, index.render(registerForm, loginForm, Settings.get().mfaAppUid));
+                }
+                throw throwable;
+            }
+        });
+    }
 
-            return Promise.pure(GO_DASHBOARD);
-        }
+    /**
+     * Answer a request refused because a bounded pool is saturated.
+     *
+     * @param e       the rejection
+     * @param content page to render
+     * @return a 503 with a Retry-After header
+     */
+    public static Result overloaded(OverloadedException e, Content content) {
+        response().setHeader(RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        return status(SERVICE_UNAVAILABLE, content);
+    }
+
+    /**
+     * Answer a request refused by a rate limit.
+     *
+     * @param retryAfter seconds before the next attempt is allowed
+     * @param content    page to render
+     * @return a 429 with a Retry-After header
+     */
+    public static Result tooManyAttempts(long retryAfter, Content content) {
+        response().setHeader(RETRY_AFTER, String.valueOf(retryAfter));
+        return status(RateLimits.TOO_MANY_REQUESTS, content);
     }
 
     /**
@@ -162,6 +217,7 @@ public class Application extends Controller {
      * @return Index page
      */
     public static Result logout() {
+        PendingAuth.clear(session());
         session().clear();
         flash("success", Messages.get("youve.been.logged.out"));
         return GO_HOME;
@@ -1,21 +1,35 @@
 package controllers;
 
-import models.LocalUser;
-import play.Logger;
-import play.Play;
+import models.UserPrincipal;
+import play.libs.F;
 import play.mvc.Controller;
 import play.mvc.Result;
-import play.mvc.Security;
+import play.mvc.With;
+import play.twirl.api.Html;
+import views.html.dashboard.content;
 import views.html.dashboard.index;
 
 /**
  * User: yesnault
  * Date: 22/01/12
  */
-@Security.Authenticated(Secured.class)
+@With(Secured.class)
 public class Dashboard extends Controller {
 
     public static Result index() {
-        return ok(index.render(LocalUser.findByEmail(request().username())));
+        final UserPrincipal user = Secured.currentUser(ctx());
+        // The content only depends on the language and on whether MFA is enabled,
+        // the user's name is added around it on every request
+        final boolean mfaEnabled = user.isMfaEnabled();
+        Html body = PageCache.fragment("dashboard." + lang().code() + "." + mfaEnabled, new F.Function0<Html>() {
+            @Override
+            public Html apply() {
+                return content.render(mfaEnabled);
+            }
+        });
+        if (!flash().isEmpty()) {
+            return ok(index.render(user, body));
+        }
+        return PageCache.tagged(index.render(user, body), "private, no-cache");
     }
 }
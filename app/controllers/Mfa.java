@@ -1,196 +1,331 @@
 package controllers;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import models.LocalUser;
-import org.springframework.cglib.core.Local;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import models.UserPrincipal;
+import models.acceptto.AuthenticateResult;
+import models.acceptto.ChannelUser;
+import models.acceptto.CheckResult;
+import models.acceptto.MfaCallbacks;
+import models.acceptto.MfaClient;
+import models.acceptto.MfaStatusHub;
+import models.acceptto.UserValidity;
+import models.audit.AuditLog;
+import models.auth.PendingAuth;
+import models.auth.QrChannels;
+import models.repositories.LocalUserRepository;
+import models.utils.Counter;
+import models.utils.Metrics;
+import models.utils.OverloadedException;
 import play.Logger;
-import play.Play;
 import play.data.DynamicForm;
 import play.data.Form;
+import play.i18n.Messages;
+import play.libs.EventSource;
 import play.libs.F;
+import play.libs.Json;
 import play.mvc.*;
-import play.libs.ws.*;
 import play.libs.F.Function;
 import play.libs.F.Promise;
-import views.html.account.signup.created;
 import views.html.mfa.enablemfa;
+import views.html.mfa.waiting;
+
+import java.util.Locale;
 
 public class Mfa extends Controller {
 
-    @Security.Authenticated(Secured.class)
+    /**
+     * Session key of the last QR channel issued to the browser.
+     */
+    private static final String QR_CHANNEL = "qr_channel";
+
+    private static final Counter APPROVED = checkOutcome("approved");
+    private static final Counter REJECTED = checkOutcome("rejected");
+    private static final Counter UNKNOWN = checkOutcome("unknown");
+
+    private static Counter checkOutcome(String outcome) {
+        return Metrics.counter("mfa_check_outcomes_total", "Outcomes of MFA checks", "outcome=\"" + outcome + "\"");
+    }
+
+    @With(Secured.class)
     public static Result enableMfa() {
-        return ok(enablemfa.render(LocalUser.findByEmail(request().username())));
+        return ok(enablemfa.render(Secured.currentUser(ctx())));
     }
 
-    @Security.Authenticated(Secured.class)
+    @With(Secured.class)
     public static Promise<Result> enableMfaPost() {
         final String email = request().username();
         DynamicForm form = Form.form().bindFromRequest();
-        String mfa_email = form.get("mfa_email");
-
-        final String mfaSite = Play.application().configuration().getString("mfa.site");
-
-        F.Promise<WSResponse> responsePromise = WS.url(mfaSite + "/api/v9/is_user_valid")
-                .setQueryParameter("email", mfa_email)
-                .setQueryParameter("uid", Application.appUID)
-                .setQueryParameter("secret", Application.appSecret)
-                .setContentType("application/x-www-form-urlencoded")
-                .post("");
+        final String mfa_email = form.get("mfa_email");
 
-        return responsePromise.map(new F.Function<WSResponse, Result>() {
+        return MfaClient.get().isUserValid(mfa_email).flatMap(new F.Function<UserValidity, Promise<Result>>() {
             @Override
-            public Result apply(WSResponse wsResponse) throws Throwable {
-                JsonNode json = wsResponse.asJson();
-
-                if (json.has("valid") && json.get("valid").asBoolean()) {
-                    if (json.has("registration_state") && json.get("registration_state").asText().equals("finished")) {
+            public Promise<Result> apply(UserValidity validity) throws Throwable {
+                if (validity.isValid()) {
+                    if (validity.isRegistered()) {
                         // Using the same email as Acceptto one.
-                        LocalUser user = LocalUser.findByEmail(email);
-                        if (user == null) {
-                            Logger.error("User " + email + " not found");
-                            ctx().flash().put("notice", "User not found.");
-                            return redirect(routes.Dashboard.index());
-                        }
-
-                        user.mfa_email = mfa_email;
-                        user.mfa_authenticated = true;
-                        user.save();
-                        Logger.debug("MFA email has set to " + mfa_email);
-                        ctx().flash().put("notice", "Enabling Multi Factor Authentication was successful.");
-                        return redirect(routes.Dashboard.index());
+                        return LocalUserRepository.setMfaEmail(email, mfa_email).map(new F.Function<Boolean, Result>() {
+                            @Override
+                            public Result apply(Boolean found) {
+                                if (!found) {
+                                    AuditLog.record(request(), AuditLog.Type.MFA_ENABLE, email, "user_not_found");
+                                    Logger.error("User " + email + " not found");
+                                    ctx().flash().put("notice", "User not found.");
+                                    return redirect(routes.Dashboard.index());
+                                }
+
+                                AuditLog.record(request(), AuditLog.Type.MFA_ENABLE, email, "enabled");
+                                PendingAuth.approve(session(), email);
+                                Logger.debug("MFA email has set to " + mfa_email);
+                                ctx().flash().put("notice", "Enabling Multi Factor Authentication was successful.");
+                                return redirect(routes.Dashboard.index());
+                            }
+                        });
                     } else {
+                        AuditLog.record(request(), AuditLog.Type.MFA_ENABLE, email, "unregistered");
                         ctx().flash().put("notice", "Entered email hasn't finished the registration process yet.");
-                        return redirect(routes.Mfa.enableMfa());
+                        return Promise.pure(redirect(routes.Mfa.enableMfa()));
                     }
                 } else {
-                    Logger.error(json.toString());
+                    Logger.error(validity.toString());
                 }
 
+                AuditLog.record(request(), AuditLog.Type.MFA_ENABLE, email, "invalid");
                 ctx().flash().put("notice", "Entered email is not a valid Acceptto user.");
-                return redirect(routes.Mfa.enableMfa());
+                return Promise.pure(redirect(routes.Mfa.enableMfa()));
+            }
+        }).recover(new Function<Throwable, Result>() {
+            @Override
+            public Result apply(Throwable throwable) throws Throwable {
+                if (throwable instanceof OverloadedException) {
+                    AuditLog.record(request(), AuditLog.Type.MFA_ENABLE, email, "unavailable");
+                    ctx().flash().put("notice", Messages.get("error.mfa.unavailable"));
+                    return redirect(routes.Mfa.enableMfa());
+                }
+                throw throwable;
             }
         });
     }
 
     public static Promise<Result> check() {
-        final String email = session("email");
-        final LocalUser user = LocalUser.findByEmail(email);
+        return Secured.loadUser(ctx()).flatMap(new Function<UserPrincipal, Promise<Result>>() {
+            @Override
+            public Promise<Result> apply(UserPrincipal user) {
+                return check(user);
+            }
+        });
+    }
+
+    private static Promise<Result> check(final UserPrincipal user) {
         if (user == null) {
             ctx().flash().put("notice", "MFA Authentication request timed out with no response.");
             return Promise.pure(redirect(routes.Application.index()));
         }
 
-        String mfaSite = Play.application().configuration().getString("mfa.site");
         String channel = ctx().session().get("channel");
 
-        Promise<WSResponse> responsePromise = WS.url(mfaSite + "/api/v9/check")
-                .setQueryParameter("uid", Application.appUID)
-                .setQueryParameter("secret", Application.appSecret)
-                .setQueryParameter("channel", channel)
-                .setQueryParameter("email", user.mfa_email)
-                .post("");
+        // The status stream may already have learned the outcome.
+        String knownStatus = MfaStatusHub.terminalStatus(channel);
+        if (knownStatus != null) {
+            return Promise.pure(checkResult(user, knownStatus));
+        }
 
-        Promise<Result> resultPromise = responsePromise.map(new Function<WSResponse, Result>() {
+        Promise<Result> resultPromise = MfaClient.get().check(channel, user.mfa_email).map(new Function<CheckResult, Result>() {
             @Override
-            public Result apply(WSResponse wsResponse) throws Throwable {
-                JsonNode json = wsResponse.asJson();
-
-                String status = json.get("status").asText();
-
-                Logger.debug("Check result status: " + status);
-
-                if (status.equals("approved")) {
-                    user.mfa_authenticated = true;
-                    user.save();
-                    ctx().flash().put("notice", "MFA Authentication request was accepted.");
-                    return redirect(routes.Dashboard.index());
-                } else if (status.equals("rejected")) {
-                    user.mfa_authenticated = false;
-                    user.save();
-                    ctx().flash().put("notice", "MFA Authentication request was declined.");
-                    return redirect(routes.Dashboard.index());
-                } else {
-                    ctx().flash().put("notice", "MFA Authentication request was unknown!");
-                    return redirect(routes.Dashboard.index());
+            public Result apply(CheckResult checkResult) throws Throwable {
+                Logger.debug("Check result status: " + checkResult.status);
+                return checkResult(user, checkResult.status);
+            }
+        }).recover(new Function<Throwable, Result>() {
+            @Override
+            public Result apply(Throwable throwable) throws Throwable {
+                if (throwable instanceof OverloadedException) {
+                    AuditLog.record(request(), AuditLog.Type.MFA_CHECK, user.email, "unavailable");
+                    // Keep the pending authentication: the callback can be reloaded once Acceptto answers.
+                    response().setHeader(RETRY_AFTER, String.valueOf(((OverloadedException) throwable).getRetryAfterSeconds()));
+                    return status(SERVICE_UNAVAILABLE, Messages.get("error.mfa.unavailable"));
                 }
+                throw throwable;
             }
         });
 
         return resultPromise;
     }
 
+    /**
+     * Outcome of an MFA request pushed by Acceptto, signed with the app secret.
+     * The browser's follow-up /auth/mfa_check then finishes the login without asking Acceptto.
+     *
+     * @return 200 if handled, even for a callback already received
+     */
+    @BodyParser.Of(value = BodyParser.Raw.class, maxLength = 4096)
+    public static Result callback() {
+        Http.RawBuffer body = request().body().asRaw();
+        MfaCallbacks.Outcome outcome = MfaCallbacks.handle(body == null ? null : body.asBytes(),
+                request().getHeader(MfaCallbacks.SIGNATURE_HEADER));
+        AuditLog.record(request(), AuditLog.Type.MFA_CALLBACK, null, outcome.name().toLowerCase(Locale.ENGLISH));
+        switch (outcome) {
+            case ACCEPTED:
+            case DUPLICATE:
+                return ok();
+            case CONFLICT:
+                return status(CONFLICT);
+            case INVALID_SIGNATURE:
+                return unauthorized();
+            default:
+                return badRequest();
+        }
+    }
 
-    public static Promise<Result> qrcode(String websocket_channel) {
-        String mfaSite = Play.application().configuration().getString("mfa.site");
-
-        Promise<WSResponse> responsePromise = WS.url(mfaSite + "/api/v9/get_user_by_websocket_channel")
-                .setContentType("application/x-www-form-urlencoded")
-                .setQueryParameter("uid", Application.appUID)
-                .setQueryParameter("secret", Application.appSecret)
-                .setQueryParameter("websocket_channel", websocket_channel)
-                .post("");
+    private static Result checkResult(UserPrincipal user, String status) {
+        AuditLog.record(request(), AuditLog.Type.MFA_CHECK, user.email,
+                MfaStatusHub.APPROVED.equals(status) || MfaStatusHub.REJECTED.equals(status) ? status : "unknown");
+        if (MfaStatusHub.APPROVED.equals(status)) {
+            APPROVED.increment();
+            PendingAuth.approve(session(), user.email);
+            ctx().flash().put("notice", "MFA Authentication request was accepted.");
+            return redirect(routes.Dashboard.index());
+        } else if (MfaStatusHub.REJECTED.equals(status)) {
+            REJECTED.increment();
+            PendingAuth.reject(session(), user.email);
+            ctx().flash().put("notice", "MFA Authentication request was declined.");
+            return redirect(routes.Dashboard.index());
+        } else {
+            UNKNOWN.increment();
+            ctx().flash().put("notice", "MFA Authentication request was unknown!");
+            return redirect(routes.Dashboard.index());
+        }
+    }
 
-        Promise<Result> resultPromise = responsePromise.flatMap(new Function<WSResponse, Promise<Result>>() {
+    /**
+     * Server-sent events stream of the MFA request pending in this session.
+     * Emits a single "status" event (approved, rejected or expired) and closes.
+     *
+     * @return the event stream, or 400 if the session has no pending MFA request
+     */
+    public static Promise<Result> status() {
+        final String channel = session("channel");
+        return Secured.loadUser(ctx()).map(new Function<UserPrincipal, Result>() {
             @Override
-            public Promise<Result> apply(WSResponse wsResponse) throws Throwable {
-                JsonNode json = wsResponse.asJson();
-
-                Boolean success = json.get("success").asBoolean();
-                String msg = json.get("message").asText();
+            public Result apply(final UserPrincipal principal) {
+                if (channel == null || principal == null || !principal.isMfaEnabled()) {
+                    return badRequest();
+                }
 
-                if (success) {
-                    String userEmail = json.get("user_email").asText();
-                    Logger.debug("User email: " + userEmail);
-                    LocalUser user = LocalUser.findByMfaEmail(userEmail);
-                    if (user == null) {
-                        Logger.error("No user find with email: " + userEmail);
-                        ctx().flash().put("notice", "User not found!");
-                        return F.Promise.pure(redirect(routes.Application.index()));
+                return ok(new EventSource() {
+                    @Override
+                    public void onConnected() {
+                        MfaStatusHub.subscribe(channel, principal.mfa_email, this);
                     }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Issue a channel for the login QR code.
+     *
+     * The channel is kept in the session: only this browser can log in with it.
+     *
+     * @return {"channel": "..."}, 429 if this client asks too often, or 503 if too many channels are waiting
+     */
+    public static Result newQrChannel() {
+        long retryAfter = RateLimits.QRCODE_IP.acquire(request().remoteAddress());
+        if (retryAfter > 0) {
+            response().setHeader(RETRY_AFTER, String.valueOf(retryAfter));
+            return status(RateLimits.TOO_MANY_REQUESTS);
+        }
+        String channel = QrChannels.issue();
+        if (channel == null) {
+            response().setHeader(RETRY_AFTER, "1");
+            return status(SERVICE_UNAVAILABLE);
+        }
+        session(QR_CHANNEL, channel);
+        response().setHeader(CACHE_CONTROL, "no-store");
+        ObjectNode json = Json.newObject();
+        json.put("channel", channel);
+        return ok(json);
+    }
 
-                    session("email", user.email);
-                    user.mfa_authenticated = false;
-                    user.save();
+    public static Promise<Result> qrcode(String websocket_channel) {
+        // Only channels issued here, to this browser, once each
+        String issued = session(QR_CHANNEL);
+        session().remove(QR_CHANNEL);
+        if (!QrChannels.consume(websocket_channel, issued)) {
+            AuditLog.record(request(), AuditLog.Type.QR_LOGIN, null, "expired");
+            ctx().flash().put("notice", Messages.get("error.qrcode.expired"));
+            return Promise.pure(redirect(routes.Application.index()));
+        }
 
-                    return accepttoAuthenticate(user, true);
+        Promise<Result> resultPromise = MfaClient.get().userByChannel(websocket_channel).flatMap(new Function<ChannelUser, Promise<Result>>() {
+            @Override
+            public Promise<Result> apply(ChannelUser channelUser) throws Throwable {
+                if (channelUser.isSuccess()) {
+                    final String userEmail = channelUser.user_email;
+                    Logger.debug("User email: " + userEmail);
+                    return LocalUserRepository.findPrincipalByMfaEmail(userEmail).flatMap(new Function<UserPrincipal, Promise<Result>>() {
+                        @Override
+                        public Promise<Result> apply(UserPrincipal user) throws Throwable {
+                            if (user == null) {
+                                AuditLog.record(request(), AuditLog.Type.QR_LOGIN, null, "user_not_found");
+                                Logger.error("No user find with email: " + userEmail);
+                                ctx().flash().put("notice", "User not found!");
+                                return F.Promise.pure(redirect(routes.Application.index()));
+                            }
+
+                            AuditLog.record(request(), AuditLog.Type.QR_LOGIN, user.email, "scanned");
+                            session("email", user.email);
+                            PendingAuth.begin(session(), user.email);
+
+                            return accepttoAuthenticate(user.mfa_email, true);
+                        }
+                    });
                 } else {
-                    ctx().flash().put("notice", "Couldn't continue the operation. " + msg);
+                    AuditLog.record(request(), AuditLog.Type.QR_LOGIN, null, "failed");
+                    ctx().flash().put("notice", "Couldn't continue the operation. " + channelUser.message);
                     return F.Promise.pure(redirect(routes.Application.index()));
                 }
             }
+        }).recover(new Function<Throwable, Result>() {
+            @Override
+            public Result apply(Throwable throwable) throws Throwable {
+                if (throwable instanceof OverloadedException) {
+                    AuditLog.record(request(), AuditLog.Type.QR_LOGIN, null, "unavailable");
+                    ctx().flash().put("notice", Messages.get("error.mfa.unavailable"));
+                    return redirect(routes.Application.index());
+                }
+                throw throwable;
+            }
         });
 
         return resultPromise;
     }
 
-    public static Promise<Result> accepttoAuthenticate(LocalUser user, boolean redirectToWaiting){
-        final String mfaSite = Play.application().configuration().getString("mfa.site");
+    public static Promise<Result> accepttoAuthenticate(String mfaEmail, final boolean redirectToWaiting){
+        final MfaClient client = MfaClient.get();
         final String callbackUrl = routes.Mfa.check().absoluteURL(ctx().request());
 
-        Promise<WSResponse> responsePromise = WS.url(mfaSite + "/api/v9/authenticate_with_options")
-            .setQueryParameter("email", user.mfa_email)
-            .setQueryParameter("uid", Application.appUID)
-            .setQueryParameter("secret", Application.appSecret)
-            .setQueryParameter("message", "Acceptto is wishing to authorize")
-            .setQueryParameter("type", "Login")
-            .setQueryParameter("callback_url", callbackUrl)
-            .post("");
-
-        Promise<Result> resultPromise = responsePromise.map(new Function<WSResponse, Result>() {
+        Promise<Result> resultPromise = client.authenticate(mfaEmail, "Acceptto is wishing to authorize", "Login", callbackUrl)
+                .map(new Function<AuthenticateResult, Result>() {
             @Override
-            public Result apply(WSResponse wsResponse) throws Throwable {
-                JsonNode json = wsResponse.asJson();
-
-                if (json.has("success") && !json.get("success").asBoolean()) {
-                    flash("error", json.get("message").asText());
+            public Result apply(AuthenticateResult authenticateResult) throws Throwable {
+                if (!authenticateResult.isSuccess()) {
+                    AuditLog.record(request(), AuditLog.Type.MFA_PUSH, session("email"), "failed");
+                    flash("error", authenticateResult.message);
                     return Application.GO_HOME;
                 }
 
-                String channel = json.get("channel").asText();
+                AuditLog.record(request(), AuditLog.Type.MFA_PUSH, session("email"), "sent");
+                String channel = authenticateResult.channel;
                 ctx().session().put("channel", channel);
+                PendingAuth.attachChannel(ctx().session(), channel);
+
+                if (MfaStatusHub.isEnabled()) {
+                    return ok(waiting.render(channel, client.site() + "/mfa/index?channel=" + channel + "&callback_url=" + callbackUrl));
+                }
 
                 String redirectPage = redirectToWaiting ? "waiting" : "index";
-                String redirectUrl = mfaSite + "/mfa/" + redirectPage + "?channel=" + channel + "&callback_url=" + callbackUrl;
+                String redirectUrl = client.site() + "/mfa/" + redirectPage + "?channel=" + channel + "&callback_url=" + callbackUrl;
 
                 return redirect(redirectUrl);
             }
@@ -0,0 +1,21 @@
+package controllers;
+
+import controllers.admin.MetricsSecured;
+import models.utils.Metrics;
+import play.mvc.Controller;
+import play.mvc.Result;
+import play.mvc.Security;
+
+/**
+ * Operational endpoints.
+ */
+public class Monitoring extends Controller {
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    @Security.Authenticated(MetricsSecured.class)
+    public static Result metrics() {
+        return ok(Metrics.scrape()).as("text/plain; version=0.0.4; charset=utf-8");
+    }
+}
@@ -0,0 +1,173 @@
+package controllers;
+
+import models.Settings;
+import models.utils.Counter;
+import models.utils.Metrics;
+import play.cache.Cache;
+import play.libs.F;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.twirl.api.Html;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Rendered pages kept in the Play cache, answered with an ETag and Last-Modified so
+ * that a browser holding the same page gets a 304.
+ * <p/>
+ * Only pages without flash messages go through here: their HTML depends on the cache key alone.
+ * Pages showing a user are not cached whole: only their user-independent fragments are, and the
+ * page itself is rendered around them and answered with an ETag (see {@link #fragment} and {@link #tagged}).
+ * The cache is bounded by conf/ehcache.xml and entries expire after page.cache.ttl.
+ */
+public class PageCache extends Controller {
+
+    private static final String PREFIX = "page.";
+    private static final String FRAGMENT_PREFIX = "fragment.";
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    private static final Counter HITS = outcome("hit");
+    private static final Counter MISSES = outcome("miss");
+    private static final Counter UNCHANGED = outcome("not_modified");
+
+    private static Counter outcome(String outcome) {
+        return Metrics.counter("page_cache_requests_total", "Pages served from the page cache", "outcome=\"" + outcome + "\"");
+    }
+
+    /**
+     * A rendered page with its validators.
+     */
+    public static class Page {
+        public final String html;
+        public final String etag;
+        public final long lastModified;
+
+        Page(String html) {
+            this.html = html;
+            this.etag = '"' + sha1(html) + '"';
+            // HTTP dates have a one second resolution
+            this.lastModified = System.currentTimeMillis() / 1000 * 1000;
+        }
+    }
+
+    /**
+     * Answer with a cached page, rendering it on a miss.
+     *
+     * @param key          identifies the page, including everything its HTML depends on
+     * @param cacheControl Cache-Control of the response, e.g. "private, no-cache"
+     * @param render       renders the page
+     * @return the page, or a 304 if the browser already has it
+     */
+    public static Result cached(String key, String cacheControl, F.Function0<Html> render) {
+        Page page = (Page) Cache.get(PREFIX + key);
+        if (page == null) {
+            MISSES.increment();
+            try {
+                page = new Page(render.apply().body());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Cannot render " + key, t);
+            }
+            Cache.set(PREFIX + key, page, Settings.get().pageCacheTtlSeconds);
+        } else {
+            HITS.increment();
+        }
+
+        response().setHeader(ETAG, page.etag);
+        response().setHeader(LAST_MODIFIED, HTTP_DATE.format(Instant.ofEpochMilli(page.lastModified).atZone(ZoneOffset.UTC)));
+        response().setHeader(CACHE_CONTROL, cacheControl);
+
+        if (isNotModified(request(), page)) {
+            UNCHANGED.increment();
+            return status(NOT_MODIFIED);
+        }
+        return ok(page.html).as("text/html; charset=utf-8");
+    }
+
+    /**
+     * A cached part of a page, rendered on a miss.
+     *
+     * @param key    identifies the fragment, including everything its HTML depends on
+     * @param render renders the fragment
+     * @return the fragment
+     */
+    public static Html fragment(String key, F.Function0<Html> render) {
+        Html fragment = (Html) Cache.get(FRAGMENT_PREFIX + key);
+        if (fragment == null) {
+            MISSES.increment();
+            try {
+                fragment = render.apply();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Cannot render " + key, t);
+            }
+            Cache.set(FRAGMENT_PREFIX + key, fragment, Settings.get().pageCacheTtlSeconds);
+        } else {
+            HITS.increment();
+        }
+        return fragment;
+    }
+
+    /**
+     * Answer with a page rendered for this request, validated by its ETag only: it has no
+     * modification date of its own.
+     *
+     * @param html         the page
+     * @param cacheControl Cache-Control of the response, e.g. "private, no-cache"
+     * @return the page, or a 304 if the browser already has it
+     */
+    public static Result tagged(Html html, String cacheControl) {
+        String body = html.body();
+        String etag = '"' + sha1(body) + '"';
+        response().setHeader(ETAG, etag);
+        response().setHeader(CACHE_CONTROL, cacheControl);
+
+        String ifNoneMatch = request().getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(etag))) {
+            UNCHANGED.increment();
+            return status(NOT_MODIFIED);
+        }
+        return ok(body).as("text/html; charset=utf-8");
+    }
+
+    private static boolean isNotModified(Http.Request request, Page page) {
+        String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals("*") || ifNoneMatch.contains(page.etag);
+        }
+        String ifModifiedSince = request.getHeader(IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toInstant().toEpochMilli();
+                return page.lastModified <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String sha1(String html) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(html.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(40);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
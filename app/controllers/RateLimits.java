@@ -0,0 +1,87 @@
+package controllers;
+
+import models.utils.Counter;
+import models.utils.Metrics;
+import models.utils.RateLimiter;
+import play.Configuration;
+import play.Play;
+import play.mvc.Http;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limits of the routes that run bcrypt, checked before the password is looked at,
+ * and of the QR channel issuance.
+ * <p/>
+ * Each route is limited per client IP and per account, from ratelimit.&lt;route&gt;.&lt;key&gt;.*.
+ * A limit without configuration is disabled.
+ */
+public class RateLimits {
+
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    public static final Limit LOGIN_IP = new Limit("login", "ip");
+    public static final Limit LOGIN_ACCOUNT = new Limit("login", "account");
+    public static final Limit SIGNUP_IP = new Limit("signup", "ip");
+    public static final Limit SIGNUP_ACCOUNT = new Limit("signup", "account");
+    public static final Limit QRCODE_IP = new Limit("qrcode", "ip");
+
+    /**
+     * One limit of a route, with its rejection counter.
+     */
+    public static class Limit {
+
+        private final RateLimiter limiter;
+        private final Counter rejected;
+
+        Limit(String route, String key) {
+            Configuration conf = Play.application().configuration();
+            Configuration limit = conf.getConfig("ratelimit." + route + "." + key);
+            if (limit == null || !conf.getBoolean("ratelimit.enabled", true)) {
+                limiter = null;
+            } else {
+                limiter = new RateLimiter(limit.getInt("burst"),
+                        limit.getMilliseconds("period"), TimeUnit.MILLISECONDS,
+                        conf.getInt("ratelimit.maxKeys", 100000));
+            }
+            rejected = Metrics.counter("rate_limit_rejected_total", "Attempts refused by a rate limit",
+                    "route=\"" + route + "\",key=\"" + key + "\"");
+        }
+
+        /**
+         * Take one attempt for a key.
+         *
+         * @param key the client IP or the account email
+         * @return 0 if the attempt is allowed, otherwise the seconds to wait
+         */
+        public long acquire(String key) {
+            if (limiter == null || key == null) {
+                return 0;
+            }
+            long wait = limiter.acquire(key.trim().toLowerCase(Locale.ENGLISH));
+            if (wait == 0) {
+                return 0;
+            }
+            rejected.increment();
+            return (wait + 999999999L) / 1000000000L;
+        }
+    }
+
+    /**
+     * Check the IP and then the account limit of a route.
+     *
+     * @param request the request
+     * @param ip      the IP limit of the route
+     * @param account the account limit of the route
+     * @param email   the email submitted
+     * @return 0 if the attempt is allowed, otherwise the seconds to wait
+     */
+    public static long acquire(Http.Request request, Limit ip, Limit account, String email) {
+        long wait = ip.acquire(request.remoteAddress());
+        if (wait == 0) {
+            wait = account.acquire(email);
+        }
+        return wait;
+    }
+}
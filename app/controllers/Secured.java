@@ -1,29 +1,94 @@
 package controllers;
 
-import models.LocalUser;
+import models.UserPrincipal;
+import models.repositories.LocalUserRepository;
+import models.repositories.PendingAuthRepository;
+import play.libs.F;
+import play.mvc.Action;
 import play.mvc.Http;
 import play.mvc.Result;
-import play.mvc.Security;
 
-public class Secured extends Security.Authenticator {
+/**
+ * Authenticates the user pages, with {@code @With(Secured.class)}: the session user must exist
+ * and, if MFA is enabled, have passed the second factor.
+ * <p/>
+ * The user and the second-factor state are read through the repositories: from the principal
+ * cache and the in-memory store on the spot, otherwise on the JDBC execution context, never
+ * blocking Play's dispatcher. The writes of the second-factor state (PendingAuth.begin, approve,
+ * reject, clear) are still synchronous; with auth.store.mode=jdbc they run a statement on the
+ * thread of the request.
+ */
+public class Secured extends Action.Simple {
+
+    private static final String CURRENT_USER = "currentUser";
+    private static final String MFA_PASSED = "mfaPassed";
 
     @Override
-    public String getUsername(Http.Context ctx) {
-        String email = ctx.session().get("email");
-        if (email == "" || email == null) {
-            return null;
-        }
+    public F.Promise<Result> call(final Http.Context ctx) throws Throwable {
+        return loadUser(ctx).flatMap(new F.Function<UserPrincipal, F.Promise<Result>>() {
+            @Override
+            public F.Promise<Result> apply(UserPrincipal user) throws Throwable {
+                if (user == null || !mfaPassed(ctx)) {
+                    return F.Promise.pure((Result) redirect(routes.Application.index()));
+                }
+                ctx.request().setUsername(user.email);
+                return delegate.call(ctx);
+            }
+        });
+    }
 
-        LocalUser user = LocalUser.findByEmail(email);
-        if (user == null || (user.mfa_email != null && user.mfa_email != "" && (user.mfa_authenticated == null || !user.mfa_authenticated))) {
-            return null;
+    /**
+     * Load the user of the session and whether it passed the second factor, at most once per request.
+     *
+     * @param ctx the request context
+     * @return a promise of the principal of the session user, or null if there is none
+     */
+    public static F.Promise<UserPrincipal> loadUser(final Http.Context ctx) {
+        if (ctx.args.containsKey(CURRENT_USER)) {
+            return F.Promise.pure((UserPrincipal) ctx.args.get(CURRENT_USER));
+        }
+        final String email = ctx.session().get("email");
+        if (email == null || email.isEmpty()) {
+            return remember(ctx, null, false);
         }
+        return LocalUserRepository.findPrincipalByEmail(email).flatMap(new F.Function<UserPrincipal, F.Promise<UserPrincipal>>() {
+            @Override
+            public F.Promise<UserPrincipal> apply(final UserPrincipal user) {
+                if (user == null || !user.isMfaEnabled()) {
+                    return remember(ctx, user, user != null);
+                }
+                return PendingAuthRepository.isApproved(ctx.session(), email).flatMap(new F.Function<Boolean, F.Promise<UserPrincipal>>() {
+                    @Override
+                    public F.Promise<UserPrincipal> apply(Boolean approved) {
+                        return remember(ctx, user, approved);
+                    }
+                });
+            }
+        });
+    }
 
-        return email;
+    private static F.Promise<UserPrincipal> remember(Http.Context ctx, UserPrincipal user, boolean mfaPassed) {
+        ctx.args.put(CURRENT_USER, user);
+        ctx.args.put(MFA_PASSED, mfaPassed);
+        return F.Promise.pure(user);
     }
 
-    @Override
-    public Result onUnauthorized(Http.Context ctx) {
-        return redirect(routes.Application.index());
+    /**
+     * The user loaded by {@link #loadUser}, or by this action for the pages it protects.
+     * This doesn't check the second factor; use {@link #mfaPassed} for that.
+     *
+     * @param ctx the request context
+     * @return the principal of the session user, or null if there is none or it wasn't loaded
+     */
+    public static UserPrincipal currentUser(Http.Context ctx) {
+        return (UserPrincipal) ctx.args.get(CURRENT_USER);
+    }
+
+    /**
+     * @param ctx the request context, after {@link #loadUser}
+     * @return true if the session user doesn't use MFA or passed it
+     */
+    public static boolean mfaPassed(Http.Context ctx) {
+        return Boolean.TRUE.equals(ctx.args.get(MFA_PASSED));
     }
 }
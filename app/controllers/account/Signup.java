@@ -1,18 +1,19 @@
 package controllers.account;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import controllers.Application;
+import controllers.RateLimits;
 import models.LocalUser;
+import models.acceptto.MfaClient;
+import models.acceptto.UserValidity;
+import models.repositories.LocalUserRepository;
 import models.utils.AppException;
 import models.utils.Hash;
+import models.utils.OverloadedException;
 import play.Configuration;
 import play.Logger;
-import play.Play;
 import play.data.Form;
 import play.i18n.Messages;
 import play.libs.F;
-import play.libs.ws.WS;
-import play.libs.ws.WSResponse;
 import play.mvc.Controller;
 import play.mvc.Result;
 import views.html.account.signup.confirm;
@@ -57,82 +58,100 @@ public class Signup extends Controller {
      * @return Successfull page or created form if bad
      */
     public static F.Promise<Result> save() {
-        Form<Application.Register> registerForm = form(Application.Register.class).bindFromRequest();
+        final Form<Application.Register> registerForm = form(Application.Register.class).bindFromRequest();
 
         if (registerForm.hasErrors()) {
             return F.Promise.pure(badRequest(create.render(registerForm)));
         }
 
-        Application.Register register = registerForm.get();
-        Result resultError = checkBeforeSave(registerForm, register.email);
+        final Application.Register register = registerForm.get();
 
-        if (resultError != null) {
-            return F.Promise.pure(resultError);
+        long retryAfter = RateLimits.acquire(request(), RateLimits.SIGNUP_IP, RateLimits.SIGNUP_ACCOUNT, register.email);
+        if (retryAfter > 0) {
+            flash("error", Messages.get("error.tooManyAttempts"));
+            return F.Promise.pure(Application.tooManyAttempts(retryAfter, create.render(registerForm)));
         }
 
-        try {
-            LocalUser user = new LocalUser();
-            user.email = register.email;
-            user.fullname = register.fullname;
-            user.passwordHash = Hash.createPassword(register.inputPassword);
-            user.confirmationToken = UUID.randomUUID().toString();
-
-            // Temporary confirm user
-            user.validated = true;
-
-            final String mfaSite = Play.application().configuration().getString("mfa.site");
-
-            F.Promise<WSResponse> responsePromise = WS.url(mfaSite + "/api/v9/is_user_valid")
-                    .setQueryParameter("email", register.email)
-                    .setQueryParameter("uid", Application.appUID)
-                    .setQueryParameter("secret", Application.appSecret)
-                    .setContentType("application/x-www-form-urlencoded")
-                    .post("");
-
-            F.Promise<Result> resultPromise = responsePromise.map(new F.Function<WSResponse, Result>() {
-                @Override
-                public Result apply(WSResponse wsResponse) throws Throwable {
-                    JsonNode json = wsResponse.asJson();
-
-                    if (json.has("valid") && json.get("valid").asBoolean()) {
-                        if (json.has("registration_state") && json.get("registration_state").asText().equals("finished")) {
-                            // Using the same email as Acceptto one.
-                            user.mfa_email = register.email;
-                            Logger.debug("MFA email has set to " + register.email);
-                        } else {
-                            Logger.warn("User has started registration in Acceptto but hasn't finished");
-                        }
-                    }
-
-                    user.save();
-
-                    return ok(created.render());
+        F.Promise<Result> resultPromise = LocalUserRepository.findByEmail(register.email).flatMap(new F.Function<LocalUser, F.Promise<Result>>() {
+            @Override
+            public F.Promise<Result> apply(LocalUser existing) {
+                // Check unique email
+                if (existing != null) {
+                    flash("error", Messages.get("error.email.already.exist"));
+                    return F.Promise.pure((Result) badRequest(create.render(registerForm)));
                 }
-            });
-
-            return resultPromise;
-        } catch (Exception e) {
-            Logger.error("Signup.save error", e);
-            flash("error", Messages.get("error.technical"));
-        }
-        return F.Promise.pure(badRequest(create.render(registerForm)));
+                return createUser(register);
+            }
+        });
+
+        return resultPromise.recover(new F.Function<Throwable, Result>() {
+            @Override
+            public Result apply(Throwable throwable) throws Throwable {
+                if (throwable instanceof OverloadedException) {
+                    flash("error", Messages.get("error.busy"));
+                    return Application.overloaded((OverloadedException) throwable, create.render(registerForm));
+                }
+                if (throwable instanceof AppException) {
+                    Logger.error("Signup.save error", throwable);
+                    flash("error", Messages.get("error.technical"));
+                    return badRequest(create.render(registerForm));
+                }
+                throw throwable;
+            }
+        });
     }
 
     /**
-     * Check if the email already exists.
+     * Hash the password while Acceptto is asked about the email, then save the user.
      *
-     * @param registerForm User Form submitted
-     * @param email email address
-     * @return Index if there was a problem, null otherwise
+     * @param register the submitted form
+     * @return the created page
      */
-    private static Result checkBeforeSave(Form<Application.Register> registerForm, String email) {
-        // Check unique email
-        if (LocalUser.findByEmail(email) != null) {
-            flash("error", Messages.get("error.email.already.exist"));
-            return badRequest(create.render(registerForm));
-        }
+    private static F.Promise<Result> createUser(final Application.Register register) {
+        final LocalUser user = new LocalUser();
+        user.email = register.email;
+        user.fullname = register.fullname;
+        user.confirmationToken = UUID.randomUUID().toString();
+
+        // Temporary confirm user
+        user.validated = true;
+
+        // Hash on the bcrypt pool while the Acceptto lookup is in flight.
+        F.Promise<String> hashPromise = Hash.createPasswordAsync(register.inputPassword);
+
+        // Without an answer from Acceptto, sign up without enabling MFA rather than fail.
+        F.Promise<UserValidity> validityPromise = MfaClient.get().isUserValid(register.email).recover(new F.Function<Throwable, UserValidity>() {
+            @Override
+            public UserValidity apply(Throwable throwable) {
+                Logger.warn("Acceptto is unavailable, " + register.email + " signs up without MFA: " + throwable.getMessage());
+                return new UserValidity();
+            }
+        });
+
+        return hashPromise.zip(validityPromise).flatMap(new F.Function<F.Tuple<String, UserValidity>, F.Promise<Result>>() {
+            @Override
+            public F.Promise<Result> apply(F.Tuple<String, UserValidity> hashAndValidity) throws Throwable {
+                user.passwordHash = hashAndValidity._1;
+                UserValidity validity = hashAndValidity._2;
+
+                if (validity.isValid()) {
+                    if (validity.isRegistered()) {
+                        // Using the same email as Acceptto one.
+                        user.mfa_email = register.email;
+                        Logger.debug("MFA email has set to " + register.email);
+                    } else {
+                        Logger.warn("User has started registration in Acceptto but hasn't finished");
+                    }
+                }
 
-        return null;
+                return LocalUserRepository.save(user).map(new F.Function<LocalUser, Result>() {
+                    @Override
+                    public Result apply(LocalUser saved) {
+                        return ok(created.render());
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -141,31 +160,44 @@ public class Signup extends Controller {
      * @param token a token attached to the user we're confirming.
      * @return Confirmationpage
      */
-    public static Result confirm(String token) {
-        LocalUser user = LocalUser.findByConfirmationToken(token);
-        if (user == null) {
-            flash("error", Messages.get("error.unknown.email"));
-            return badRequest(confirm.render());
-        }
+    public static F.Promise<Result> confirm(String token) {
+        return LocalUserRepository.findByConfirmationToken(token).flatMap(new F.Function<LocalUser, F.Promise<Result>>() {
+            @Override
+            public F.Promise<Result> apply(LocalUser user) {
+                if (user == null) {
+                    flash("error", Messages.get("error.unknown.email"));
+                    return F.Promise.pure((Result) badRequest(confirm.render()));
+                }
 
-        if (user.validated) {
-            flash("error", Messages.get("error.account.already.validated"));
-            return badRequest(confirm.render());
-        }
+                if (user.validated) {
+                    flash("error", Messages.get("error.account.already.validated"));
+                    return F.Promise.pure((Result) badRequest(confirm.render()));
+                }
 
-        try {
-            if (LocalUser.confirm(user)) {
-                flash("success", Messages.get("account.successfully.validated"));
-                return ok(confirm.render());
-            } else {
-                Logger.debug("Signup.confirm cannot confirm user");
-                flash("error", Messages.get("error.confirm"));
-                return badRequest(confirm.render());
+                return LocalUserRepository.confirm(user).map(new F.Function<Boolean, Result>() {
+                    @Override
+                    public Result apply(Boolean confirmed) {
+                        if (confirmed) {
+                            flash("success", Messages.get("account.successfully.validated"));
+                            return ok(confirm.render());
+                        } else {
+                            Logger.debug("Signup.confirm cannot confirm user");
+                            flash("error", Messages.get("error.confirm"));
+                            return badRequest(confirm.render());
+                        }
+                    }
+                });
             }
-        } catch (AppException e) {
-            Logger.error("Cannot signup", e);
-            flash("error", Messages.get("error.technical"));
-        }
-        return badRequest(confirm.render());
+        }).recover(new F.Function<Throwable, Result>() {
+            @Override
+            public Result apply(Throwable throwable) throws Throwable {
+                if (throwable instanceof AppException) {
+                    Logger.error("Cannot signup", throwable);
+                    flash("error", Messages.get("error.technical"));
+                    return badRequest(confirm.render());
+                }
+                throw throwable;
+            }
+        });
     }
 }
@@ -0,0 +1,43 @@
+package controllers.admin;
+
+import models.Settings;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Authenticates the admin endpoints with the bearer token set in admin.token.
+ * Without admin.token, every admin request is refused.
+ */
+public class AdminSecured extends Security.Authenticator {
+
+    private static final String BEARER = "Bearer ";
+
+    @Override
+    public String getUsername(Http.Context ctx) {
+        return hasBearer(ctx.request(), Settings.get().adminToken) ? "admin" : null;
+    }
+
+    /**
+     * @param request the request
+     * @param token   the expected token, null if none is configured
+     * @return true if the request carries this bearer token, compared in constant time
+     */
+    public static boolean hasBearer(Http.RequestHeader request, String token) {
+        String header = request.getHeader(Http.HeaderNames.AUTHORIZATION);
+        if (token == null || header == null || !header.startsWith(BEARER)) {
+            return false;
+        }
+        byte[] expected = token.getBytes(StandardCharsets.UTF_8);
+        byte[] actual = header.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    @Override
+    public Result onUnauthorized(Http.Context ctx) {
+        return unauthorized("Admin token required");
+    }
+}
@@ -0,0 +1,41 @@
+package controllers.admin;
+
+import models.Settings;
+import play.api.mvc.BodyParsers$;
+import play.api.mvc.RequestHeader;
+import play.core.j.RequestHeaderImpl;
+import play.mvc.BodyParser;
+import play.mvc.Http;
+import play.mvc.Results;
+import scala.concurrent.Future;
+import scala.concurrent.Future$;
+import scala.runtime.AbstractFunction1;
+
+/**
+ * Body parser of the user import.
+ * <p/>
+ * Body parsers run before {@link AdminSecured}, so the admin token is checked here, from the
+ * headers alone: without it the request is refused before a byte of the body is read. An
+ * accepted body is read like {@link BodyParser.Raw}, spooled to a temporary file past the
+ * memory threshold, up to import.maxBodySize.
+ */
+public class ImportBodyParser implements BodyParser {
+
+    @Override
+    public play.api.mvc.BodyParser<Http.RequestBody> parser(int maxLength) {
+        return BodyParsers$.MODULE$.parse().when(
+                new AbstractFunction1<RequestHeader, Object>() {
+                    @Override
+                    public Object apply(RequestHeader header) {
+                        return AdminSecured.hasBearer(new RequestHeaderImpl(header), Settings.get().adminToken);
+                    }
+                },
+                new BodyParser.Raw().parser(Settings.get().importMaxBodySize),
+                new AbstractFunction1<RequestHeader, Future<play.api.mvc.Result>>() {
+                    @Override
+                    public Future<play.api.mvc.Result> apply(RequestHeader header) {
+                        return Future$.MODULE$.successful(Results.unauthorized("Admin token required").toScala());
+                    }
+                });
+    }
+}
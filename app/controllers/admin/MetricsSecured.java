@@ -0,0 +1,27 @@
+package controllers.admin;
+
+import models.Settings;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Security;
+
+/**
+ * Authenticates /metrics with the bearer token set in metrics.token, or the admin token.
+ * Without either, every scrape is refused.
+ */
+public class MetricsSecured extends Security.Authenticator {
+
+    @Override
+    public String getUsername(Http.Context ctx) {
+        Settings settings = Settings.get();
+        if (AdminSecured.hasBearer(ctx.request(), settings.metricsToken)) {
+            return "metrics";
+        }
+        return AdminSecured.hasBearer(ctx.request(), settings.adminToken) ? "admin" : null;
+    }
+
+    @Override
+    public Result onUnauthorized(Http.Context ctx) {
+        return unauthorized("Metrics token required");
+    }
+}
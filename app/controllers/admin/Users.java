@@ -0,0 +1,202 @@
+package controllers.admin;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import models.LocalUser;
+import models.Settings;
+import models.UserFilter;
+import models.exports.UserCsvExport;
+import models.imports.UserImport;
+import models.repositories.JdbcExecution;
+import models.repositories.LocalUserRepository;
+import play.Logger;
+import play.api.http.Writeable$;
+import play.api.libs.iteratee.Enumerator;
+import play.api.libs.iteratee.Enumerator$;
+import play.libs.F.Function;
+import play.libs.F.Function0;
+import play.libs.F.Promise;
+import play.libs.Json;
+import play.mvc.BodyParser;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+import play.mvc.Security;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Admin operations on users, authenticated by {@link AdminSecured}.
+ */
+@Security.Authenticated(AdminSecured.class)
+public class Users extends Controller {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * List users in id order, one page at a time.
+     * To get the next page, pass the returned next as after; next is null on the last page.
+     *
+     * @param after      last id of the previous page, 0 for the first page
+     * @param limit      users per page, at most admin.users.maxLimit
+     * @param validated  true or false to filter on the email confirmation
+     * @param mfaEnabled true or false to filter on users with an MFA email
+     * @param mfaEmail   an MFA email to look for
+     * @return {"users": [...], "next": id}
+     */
+    public static Promise<Result> list(Long after, Integer limit, String validated, String mfaEnabled, String mfaEmail) {
+        final UserFilter filter;
+        try {
+            filter = filter(validated, mfaEnabled, mfaEmail);
+        } catch (IllegalArgumentException e) {
+            return Promise.pure((Result) badRequest(e.getMessage()));
+        }
+        int maxLimit = Settings.get().adminUsersMaxLimit;
+        if (after < 0 || limit <= 0 || limit > maxLimit) {
+            return Promise.pure((Result) badRequest("after must be positive and limit between 1 and " + maxLimit));
+        }
+
+        final int pageSize = limit;
+        return LocalUserRepository.findPage(after, pageSize, filter).map(new Function<List<LocalUser>, Result>() {
+            @Override
+            public Result apply(List<LocalUser> users) {
+                ObjectNode json = Json.newObject();
+                ArrayNode array = json.putArray("users");
+                for (LocalUser user : users) {
+                    ObjectNode node = array.addObject();
+                    node.put("id", user.id);
+                    node.put("email", user.email);
+                    node.put("fullname", user.fullname);
+                    node.put("dateCreation", user.dateCreation == null ? null : user.dateCreation.getTime());
+                    node.put("validated", Boolean.TRUE.equals(user.validated));
+                    node.put("mfa_email", user.mfa_email);
+                }
+                if (users.size() == pageSize) {
+                    json.put("next", users.get(users.size() - 1).id);
+                } else {
+                    json.putNull("next");
+                }
+                return ok(json);
+            }
+        });
+    }
+
+    /**
+     * Export the users matching the filters as CSV, streamed as the client reads it.
+     * The export is read, and so its page queries run, on the JDBC execution context.
+     */
+    public static Result export(String validated, String mfaEnabled, String mfaEmail) {
+        UserFilter filter;
+        try {
+            filter = filter(validated, mfaEnabled, mfaEmail);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        response().setHeader("Content-Disposition", "attachment; filename=users.csv");
+        // ok(InputStream) would read it on Play's internal context
+        final Enumerator<byte[]> csv = Enumerator$.MODULE$.fromStream(
+                new UserCsvExport(filter, Settings.get().adminUsersExportPageSize), CHUNK_SIZE, JdbcExecution.context());
+        return new Result() {
+            @Override
+            public play.api.mvc.Result toScala() {
+                return play.api.mvc.Results$.MODULE$.Ok().chunked(csv, Writeable$.MODULE$.wBytes())
+                        .as("text/csv; charset=utf-8");
+            }
+        };
+    }
+
+    private static UserFilter filter(String validated, String mfaEnabled, String mfaEmail) {
+        UserFilter filter = new UserFilter();
+        filter.validated = parseBoolean("validated", validated);
+        filter.mfaEnabled = parseBoolean("mfaEnabled", mfaEnabled);
+        filter.mfaEmail = mfaEmail == null || mfaEmail.isEmpty() ? null : mfaEmail;
+        return filter;
+    }
+
+    private static Boolean parseBoolean(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        if ("true".equalsIgnoreCase(value)) {
+            return Boolean.TRUE;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return Boolean.FALSE;
+        }
+        throw new IllegalArgumentException(name + " must be true or false");
+    }
+
+    /**
+     * Import users from the request body, CSV or line-delimited JSON, of at most import.maxBodySize bytes.
+     * The response is streamed: one progress line per committed chunk, then the final counters.
+     * To resume an interrupted import, send the same body again with skip set to the last line reported.
+     *
+     * @param format csv or json
+     * @param skip   input lines already committed
+     * @return the progress, as text
+     */
+    @BodyParser.Of(ImportBodyParser.class)
+    public static Result importUsers(String format, final Long skip) {
+        final UserImport.Format inputFormat;
+        try {
+            inputFormat = UserImport.Format.valueOf(format.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return badRequest("Unknown format " + format + ", expected csv or json");
+        }
+        final Http.RawBuffer body = request().body().asRaw();
+        if (body == null) {
+            return badRequest("Missing body");
+        }
+        if (!UserImport.claim()) {
+            return status(CONFLICT, "An import is already running");
+        }
+
+        return ok(new Results.StringChunks() {
+            @Override
+            public void onReady(final Out<String> out) {
+                try {
+                    Promise.promise(new Function0<Void>() {
+                        @Override
+                        public Void apply() {
+                            try {
+                                importBody(body, inputFormat, skip, out);
+                            } finally {
+                                UserImport.release();
+                                out.close();
+                            }
+                            return null;
+                        }
+                    }, UserImport.context());
+                } catch (RuntimeException e) {
+                    UserImport.release();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private static void importBody(Http.RawBuffer body, UserImport.Format format, long skip, final Results.Chunks.Out<String> out) {
+        try {
+            InputStream input = new FileInputStream(body.asFile());
+            try {
+                UserImport.Progress progress = UserImport.fromConfig(format).run(input, skip,
+                        new UserImport.Listener() {
+                            @Override
+                            public void onProgress(UserImport.Progress progress) {
+                                out.write(progress + "\n");
+                            }
+                        });
+                out.write("done " + progress + "\n");
+            } finally {
+                input.close();
+            }
+        } catch (Exception e) {
+            Logger.error("User import failed", e);
+            out.write("failed " + e.getMessage() + "\n");
+        }
+    }
+}
@@ -1,15 +1,27 @@
 package models;
 
+import com.avaje.ebean.Ebean;
+import models.repositories.LocalUserRepository;
 import models.utils.AppException;
 import models.utils.Hash;
+import models.utils.Histogram;
+import models.utils.Metrics;
+import models.utils.TtlCache;
+import play.Configuration;
+import play.Logger;
+import play.Play;
 import play.data.format.Formats;
 import play.data.validation.Constraints;
 import play.db.ebean.Model;
+import play.libs.F;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: yesnault
@@ -51,6 +63,109 @@ public class LocalUser extends Model {
     // -- Queries (long id, user.class)
     public static Model.Finder<Long, LocalUser> find = new Model.Finder<Long, LocalUser>(Long.class, LocalUser.class);
 
+    // -- Projections for the hot paths, so they don't load the whole row
+    private static final String PRINCIPAL_COLUMNS = "email, fullname, mfa_email, validated";
+    private static final String CREDENTIAL_COLUMNS = "id, email, passwordHash, validated, mfa_email";
+    private static final String LIST_COLUMNS = "id, email, fullname, dateCreation, validated, mfa_email";
+
+    // -- Query latencies
+    private static final Histogram FIND_BY_EMAIL = queryHistogram("findByEmail");
+    private static final Histogram FIND_PRINCIPAL = queryHistogram("findPrincipalByEmail");
+    private static final Histogram FIND_CREDENTIALS = queryHistogram("findCredentialsByEmail");
+    private static final Histogram FIND_BY_MFA_EMAIL = queryHistogram("findByMfaEmail");
+    private static final Histogram FIND_PRINCIPAL_BY_MFA_EMAIL = queryHistogram("findPrincipalByMfaEmail");
+    private static final Histogram FIND_BY_FULLNAME = queryHistogram("findByFullname");
+    private static final Histogram FIND_BY_CONFIRMATION_TOKEN = queryHistogram("findByConfirmationToken");
+    private static final Histogram FIND_PAGE = queryHistogram("findPage");
+    private static final Histogram SAVE = queryHistogram("save");
+    private static final Histogram UPDATE = queryHistogram("update");
+    private static final Histogram DELETE = queryHistogram("delete");
+    private static final Histogram UPDATE_PASSWORD_HASH = queryHistogram("updatePasswordHash");
+
+    private static Histogram queryHistogram(String query) {
+        return Metrics.histogram("db_query_duration_seconds", "Latency of database queries",
+                "entity=\"local_user\",query=\"" + query + "\"");
+    }
+
+    // -- Session principals, keyed by email. Invalidated on every write of the row.
+    private static final TtlCache<String, UserPrincipal> principals = newPrincipalCache();
+    // Bumped by every invalidation, so a lookup that raced with a write doesn't keep what it read
+    private static final AtomicLong principalGeneration = new AtomicLong();
+
+    private static TtlCache<String, UserPrincipal> newPrincipalCache() {
+        Configuration conf = Play.application().configuration();
+        TtlCache<String, UserPrincipal> cache = new TtlCache<String, UserPrincipal>(
+                conf.getInt("user.cache.maxSize", 10000),
+                conf.getMilliseconds("user.cache.ttl", 60000L),
+                TimeUnit.MILLISECONDS);
+        Metrics.cache("user_principal", cache);
+        return cache;
+    }
+
+    /**
+     * Retrieve the session principal of a user, from the cache when possible.
+     *
+     * @param email email to search
+     * @return the principal, or null if no user has this email
+     */
+    public static UserPrincipal findPrincipalByEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        UserPrincipal principal = principals.get(email);
+        return principal != null ? principal : loadPrincipalByEmail(email);
+    }
+
+    /**
+     * Query the session principal of a user and cache it, without looking at the cache first.
+     *
+     * @param email email to search
+     * @return the principal, or null if no user has this email
+     */
+    public static UserPrincipal loadPrincipalByEmail(String email) {
+        long generation = principalGeneration.get();
+        long start = System.nanoTime();
+        LocalUser user = find.select(PRINCIPAL_COLUMNS).where().eq("email", email).findUnique();
+        FIND_PRINCIPAL.recordSince(start);
+        if (user == null) {
+            return null;
+        }
+        UserPrincipal principal = user.toPrincipal();
+        principals.put(email, principal);
+        if (principalGeneration.get() != generation) {
+            // A write was invalidated since the query: what was read may predate it
+            principals.invalidate(email);
+        }
+        return principal;
+    }
+
+    /**
+     * @param email email to search
+     * @return the cached principal of a user, or null if it isn't cached; never queries
+     */
+    public static UserPrincipal cachedPrincipal(String email) {
+        return email == null ? null : principals.get(email);
+    }
+
+    /**
+     * Drop the cached principal of a user. Called after every write of the row.
+     */
+    private static void invalidatePrincipal(String email) {
+        principalGeneration.incrementAndGet();
+        principals.invalidate(email);
+    }
+
+    /**
+     * @return the principal cache, for its hit/miss counters
+     */
+    public static TtlCache<String, UserPrincipal> principalCache() {
+        return principals;
+    }
+
+    public UserPrincipal toPrincipal() {
+        return new UserPrincipal(email, fullname, mfa_email, validated);
+    }
+
     /**
      * Retrieve a user from an email.
      *
@@ -58,7 +173,12 @@ public class LocalUser extends Model {
      * @return a user
      */
     public static LocalUser findByEmail(String email) {
-        return find.where().eq("email", email).findUnique();
+        long start = System.nanoTime();
+        try {
+            return find.where().eq("email", email).findUnique();
+        } finally {
+            FIND_BY_EMAIL.recordSince(start);
+        }
     }
 
     /**
@@ -68,7 +188,41 @@ public class LocalUser extends Model {
      * @return a user
      */
     public static LocalUser findByMfaEmail(String mfaEmail) {
-        return find.where().eq("mfa_email", mfaEmail).findUnique();
+        long start = System.nanoTime();
+        try {
+            return find.where().eq("mfa_email", mfaEmail).findUnique();
+        } finally {
+            FIND_BY_MFA_EMAIL.recordSince(start);
+        }
+    }
+
+    /**
+     * Retrieve the principal of the user with an MFA email.
+     * Only the principal columns are loaded.
+     *
+     * @param mfaEmail MFA email to search
+     * @return the principal, or null if no user has this MFA email
+     */
+    public static UserPrincipal findPrincipalByMfaEmail(String mfaEmail) {
+        long start = System.nanoTime();
+        LocalUser user = find.select(PRINCIPAL_COLUMNS).where().eq("mfa_email", mfaEmail).findUnique();
+        FIND_PRINCIPAL_BY_MFA_EMAIL.recordSince(start);
+        return user == null ? null : user.toPrincipal();
+    }
+
+    /**
+     * Retrieve what's needed to check a password: id, email, passwordHash, validated and mfa_email.
+     *
+     * @param email email to search
+     * @return a partially loaded user
+     */
+    public static LocalUser findCredentialsByEmail(String email) {
+        long start = System.nanoTime();
+        try {
+            return find.select(CREDENTIAL_COLUMNS).where().eq("email", email).findUnique();
+        } finally {
+            FIND_CREDENTIALS.recordSince(start);
+        }
     }
 
     /**
@@ -78,7 +232,12 @@ public class LocalUser extends Model {
      * @return a user
      */
     public static LocalUser findByFullname(String fullname) {
-        return find.where().eq("fullname", fullname).findUnique();
+        long start = System.nanoTime();
+        try {
+            return find.where().eq("fullname", fullname).findUnique();
+        } finally {
+            FIND_BY_FULLNAME.recordSince(start);
+        }
     }
 
     /**
@@ -88,33 +247,136 @@ public class LocalUser extends Model {
      * @return a user if the confirmation token is found, null otherwise.
      */
     public static LocalUser findByConfirmationToken(String token) {
-        return find.where().eq("confirmationToken", token).findUnique();
+        long start = System.nanoTime();
+        try {
+            return find.where().eq("confirmationToken", token).findUnique();
+        } finally {
+            FIND_BY_CONFIRMATION_TOKEN.recordSince(start);
+        }
+    }
+
+    /**
+     * Retrieve a page of users, in id order, for the admin listing.
+     * Keyset pagination: the page starts after the last id of the previous one, so every page
+     * costs the same whatever its position. The password hash and tokens are not loaded.
+     *
+     * @param afterId last id of the previous page, 0 for the first page
+     * @param limit   maximum number of users
+     * @param filter  criteria on the users
+     * @return partially loaded users
+     */
+    public static List<LocalUser> findPage(long afterId, int limit, UserFilter filter) {
+        long start = System.nanoTime();
+        try {
+            return filter.apply(find.select(LIST_COLUMNS).where().gt("id", afterId))
+                    .orderBy("id asc")
+                    .setMaxRows(limit)
+                    .findList();
+        } finally {
+            FIND_PAGE.recordSince(start);
+        }
     }
 
     /**
      * Authenticate a User, from a email and clear password.
+     * The credentials are read on the JDBC execution context and the password is verified
+     * on the bcrypt pool, never on the calling thread.
+     * If the stored hash was made with a lower bcrypt cost than the current one, it is upgraded in the background.
      *
      * @param email         email
      * @param clearPassword clear password
-     * @return User if authenticated, null otherwise
-     * @throws AppException App Exception
+     * @return a promise of the User if authenticated, null otherwise.
+     * Fails with an OverloadedException if the bcrypt pool is saturated.
      */
-    public static LocalUser authenticate(String email, String clearPassword) throws AppException {
+    public static F.Promise<LocalUser> authenticate(String email, final String clearPassword) {
 
         // get the user with email only to keep the salt password
-        LocalUser user = find.where().eq("email", email).findUnique();
-        if (user != null) {
-            // get the hash password from the salt + clear password
-            if (Hash.checkPassword(clearPassword, user.passwordHash)) {
-                return user;
+        return LocalUserRepository.findCredentialsByEmail(email).flatMap(new F.Function<LocalUser, F.Promise<LocalUser>>() {
+            @Override
+            public F.Promise<LocalUser> apply(final LocalUser user) {
+                if (user == null) {
+                    return F.Promise.pure(null);
+                }
+                // get the hash password from the salt + clear password
+                return Hash.checkPasswordAsync(clearPassword, user.passwordHash).map(new F.Function<Boolean, LocalUser>() {
+                    @Override
+                    public LocalUser apply(Boolean matches) {
+                        if (!matches) {
+                            return null;
+                        }
+                        if (Hash.needsRehash(user.passwordHash)) {
+                            rehash(user.id, user.email, user.passwordHash, clearPassword);
+                        }
+                        return user;
+                    }
+                });
             }
+        });
+    }
+
+    /**
+     * Hash the password again with the current cost and store it, unless the password
+     * changed in the meantime. Failures are only logged: the next login will retry.
+     */
+    private static void rehash(final Long id, final String email, final String oldHash, String clearPassword) {
+        Hash.createPasswordAsync(clearPassword).flatMap(new F.Function<String, F.Promise<Boolean>>() {
+            @Override
+            public F.Promise<Boolean> apply(final String newHash) {
+                return LocalUserRepository.updatePasswordHash(id, oldHash, newHash).map(new F.Function<Boolean, Boolean>() {
+                    @Override
+                    public Boolean apply(Boolean updated) {
+                        if (updated) {
+                            Logger.debug("Password of " + email + " rehashed with cost " + Hash.costOf(newHash));
+                        }
+                        return updated;
+                    }
+                });
+            }
+        }).onFailure(new F.Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable throwable) {
+                Logger.warn("Cannot rehash the password of " + email + ": " + throwable.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Replace a password hash, unless the password changed since oldHash was read.
+     *
+     * @param id      id of the user
+     * @param oldHash the hash that was verified
+     * @param newHash the new hash
+     * @return true if the hash was replaced
+     */
+    public static boolean updatePasswordHash(Long id, String oldHash, String newHash) {
+        long start = System.nanoTime();
+        try {
+            return Ebean.createSqlUpdate(
+                    "update local_user set password_hash = :newHash where id = :id and password_hash = :oldHash")
+                    .setParameter("newHash", newHash)
+                    .setParameter("id", id)
+                    .setParameter("oldHash", oldHash)
+                    .execute() == 1;
+        } finally {
+            UPDATE_PASSWORD_HASH.recordSince(start);
         }
-        return null;
     }
 
-    public void changePassword(String password) throws AppException {
-        this.passwordHash = Hash.createPassword(password);
-        this.save();
+    /**
+     * Change the password, hashing it on the bcrypt pool and saving it on the JDBC execution context.
+     *
+     * @param password the new clear password
+     * @return a promise completed once the user is saved
+     */
+    public F.Promise<LocalUser> changePassword(String password) {
+        final LocalUser user = this;
+        return Hash.createPasswordAsync(password).flatMap(new F.Function<String, F.Promise<LocalUser>>() {
+            @Override
+            public F.Promise<LocalUser> apply(String hash) {
+                user.passwordHash = hash;
+                return LocalUserRepository.save(user);
+            }
+        });
     }
 
     /**
@@ -134,4 +396,28 @@ public class LocalUser extends Model {
         return true;
     }
 
+    @Override
+    public void save() {
+        long start = System.nanoTime();
+        super.save();
+        SAVE.recordSince(start);
+        invalidatePrincipal(email);
+    }
+
+    @Override
+    public void update() {
+        long start = System.nanoTime();
+        super.update();
+        UPDATE.recordSince(start);
+        invalidatePrincipal(email);
+    }
+
+    @Override
+    public void delete() {
+        long start = System.nanoTime();
+        super.delete();
+        DELETE.recordSince(start);
+        invalidatePrincipal(email);
+    }
+
 }
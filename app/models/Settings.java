@@ -0,0 +1,93 @@
+package models;
+
+import play.Configuration;
+import play.Play;
+
+/**
+ * Settings read on every request, loaded once from the configuration when the application starts.
+ * <p/>
+ * Immutable: a configuration change needs a restart, as with the rest of application.conf.
+ */
+public class Settings {
+
+    private static volatile Settings current;
+
+    /**
+     * Acceptto site, e.g. https://mfa.acceptto.com
+     */
+    public final String mfaSite;
+    public final String mfaAppUid;
+    public final String mfaAppSecret;
+
+    /**
+     * Bearer token of the admin endpoints, null if they are disabled.
+     */
+    public final String adminToken;
+
+    /**
+     * Bearer token of /metrics, for a scraper that shouldn't hold the admin token. Null if unset.
+     */
+    public final String metricsToken;
+
+    /**
+     * Largest page of /admin/users.
+     */
+    public final int adminUsersMaxLimit;
+
+    /**
+     * Users read per query by the /admin/users.csv export.
+     */
+    public final int adminUsersExportPageSize;
+
+    /**
+     * Time a rendered page stays in the page cache.
+     */
+    public final int pageCacheTtlSeconds;
+
+    /**
+     * Largest body accepted by the user import, in bytes.
+     */
+    public final int importMaxBodySize;
+
+    public Settings(Configuration conf) {
+        this.mfaSite = conf.getString("mfa.site");
+        this.mfaAppUid = conf.getString("mfa.app.uid");
+        this.mfaAppSecret = conf.getString("mfa.app.secret");
+        String token = conf.getString("admin.token");
+        this.adminToken = token == null || token.isEmpty() ? null : token;
+        String scrapeToken = conf.getString("metrics.token");
+        this.metricsToken = scrapeToken == null || scrapeToken.isEmpty() ? null : scrapeToken;
+        this.adminUsersMaxLimit = conf.getInt("admin.users.maxLimit", 1000);
+        this.adminUsersExportPageSize = conf.getInt("admin.users.exportPageSize", 1000);
+        this.pageCacheTtlSeconds = (int) (conf.getMilliseconds("page.cache.ttl", 600000L) / 1000);
+        Long importBytes = conf.getBytes("import.maxBodySize");
+        this.importMaxBodySize = importBytes == null ? 100 * 1024 * 1024 : (int) Math.min(Integer.MAX_VALUE, importBytes);
+    }
+
+    /**
+     * Load the settings of the running application. Called when the application starts.
+     */
+    public static Settings load(Configuration conf) {
+        Settings settings = new Settings(conf);
+        current = settings;
+        return settings;
+    }
+
+    /**
+     * Forget the settings. Called when the application stops.
+     */
+    public static void unload() {
+        current = null;
+    }
+
+    /**
+     * @return the settings, loaded on first use outside of a started application (tools, tests)
+     */
+    public static Settings get() {
+        Settings settings = current;
+        if (settings == null) {
+            settings = load(Play.application().configuration());
+        }
+        return settings;
+    }
+}
@@ -1,5 +1,10 @@
 package models;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+import models.utils.Histogram;
+import models.utils.Metrics;
 import play.Configuration;
 import play.Logger;
 import play.data.format.Formats;
@@ -14,9 +19,11 @@ import javax.persistence.Enumerated;
 import javax.persistence.Id;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Calendar;
+import java.sql.Timestamp;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author wsargent
@@ -26,6 +33,7 @@ import java.util.UUID;
 public class Token extends Model {
     // Reset tokens will expire after a day.
     private static final int EXPIRATION_DAYS = 1;
+    private static final long EXPIRATION_MILLIS = TimeUnit.DAYS.toMillis(EXPIRATION_DAYS);
 
     public enum TypeToken {
         password("reset"), email("email");
@@ -59,6 +67,13 @@ public class Token extends Model {
     @SuppressWarnings("unchecked")
     public static Model.Finder<String, Token> find = new Finder(String.class, Token.class);
 
+    private static final Histogram FIND_BY_TOKEN_AND_TYPE = Metrics.histogram("db_query_duration_seconds",
+            "Latency of database queries", "entity=\"token\",query=\"findByTokenAndType\"");
+    private static final Histogram SAVE = Metrics.histogram("db_query_duration_seconds",
+            "Latency of database queries", "entity=\"token\",query=\"save\"");
+    private static final Histogram DELETE_EXPIRED = Metrics.histogram("db_query_duration_seconds",
+            "Latency of database queries", "entity=\"token\",query=\"deleteCreatedBefore\"");
+
     /**
      * Retrieve a token by id and type.
      *
@@ -67,23 +82,69 @@ public class Token extends Model {
      * @return a resetToken
      */
     public static Token findByTokenAndType(String token, TypeToken type) {
-        return find.where().eq("token", token).eq("type", type).findUnique();
+        long start = System.nanoTime();
+        try {
+            return find.where().eq("token", token).eq("type", type).findUnique();
+        } finally {
+            FIND_BY_TOKEN_AND_TYPE.recordSince(start);
+        }
     }
 
     /**
      * @return true if the reset token is too old to use, false otherwise.
      */
     public boolean isExpired() {
-        return dateCreation != null && dateCreation.before(expirationTime());
+        return dateCreation != null && dateCreation.getTime() < expirationTime();
+    }
+
+    /**
+     * @return the time, in milliseconds, before which a token has expired.
+     */
+    public static long expirationTime() {
+        return System.currentTimeMillis() - EXPIRATION_MILLIS;
     }
 
     /**
-     * @return a date before which the password link has expired.
+     * Delete up to batchSize tokens created before a time, or without a creation time.
+     * <p/>
+     * The tokens are selected first, with the row limit of the database platform, then deleted
+     * by id in a single statement: LIMIT in an IN subquery isn't portable (MySQL refuses it).
+     *
+     * @param before    creation time before which tokens are deleted, in milliseconds
+     * @param batchSize maximum number of rows deleted
+     * @return the number of rows deleted
      */
-    private Date expirationTime() {
-        Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.DATE, -EXPIRATION_DAYS);
-        return cal.getTime();
+    public static int deleteCreatedBefore(long before, int batchSize) {
+        long start = System.nanoTime();
+        try {
+            List<SqlRow> rows = Ebean.createSqlQuery("select token from token where date_creation < :before"
+                    + " or date_creation is null")
+                    .setParameter("before", new Timestamp(before))
+                    .setMaxRows(batchSize)
+                    .findList();
+            if (rows.isEmpty()) {
+                return 0;
+            }
+            StringBuilder sql = new StringBuilder("delete from token where token in (");
+            for (int i = 0; i < rows.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            SqlUpdate delete = Ebean.createSqlUpdate(sql.append(')').toString());
+            int position = 1;
+            for (SqlRow row : rows) {
+                delete.setParameter(position++, row.getString("token"));
+            }
+            return delete.execute();
+        } finally {
+            DELETE_EXPIRED.recordSince(start);
+        }
+    }
+
+    @Override
+    public void save() {
+        long start = System.nanoTime();
+        super.save();
+        SAVE.recordSince(start);
     }
 
     /**
@@ -100,6 +161,7 @@ public class Token extends Model {
         token.userId = user.id;
         token.type = type;
         token.email = email;
+        token.dateCreation = new Date();
         token.save();
         return token;
     }
@@ -0,0 +1,119 @@
+package models;
+
+import akka.actor.Cancellable;
+import models.repositories.TokenRepository;
+import models.utils.Counter;
+import models.utils.Histogram;
+import models.utils.Metrics;
+import play.Configuration;
+import play.Logger;
+import play.Play;
+import play.libs.Akka;
+import play.libs.F;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduled deletion of expired tokens.
+ * <p/>
+ * Each run deletes the tokens created before the expiration time, and legacy tokens without
+ * a creation time, which could never be told expired, token.purge.batchSize
+ * rows per statement, so every statement holds its locks briefly. A run stops after
+ * token.purge.maxBatches statements; the rest is left to the next run. The statements go
+ * through {@link TokenRepository}, so they run on the JDBC execution context.
+ */
+public class TokenPurger {
+
+    private static final Counter PURGED = Metrics.counter("token_purged_rows_total",
+            "Expired tokens deleted", "");
+    private static final Histogram RUN = Metrics.histogram("token_purge_duration_seconds",
+            "Duration of a token purge run", "");
+
+    private static volatile long lastRunRows;
+    private static Cancellable job;
+
+    /**
+     * Schedule the purge configured by token.purge.*. Called when the application starts.
+     */
+    public static synchronized void start() {
+        Configuration conf = Play.application().configuration().getConfig("token.purge");
+        if (conf == null || !conf.getBoolean("enabled", true)) {
+            return;
+        }
+        final int batchSize = conf.getInt("batchSize", 1000);
+        final int maxBatches = conf.getInt("maxBatches", 100);
+        long interval = conf.getMilliseconds("interval", 3600000L);
+
+        Metrics.gauge("token_purge_last_run_rows", "Expired tokens deleted by the last purge run", "", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return lastRunRows;
+            }
+        });
+
+        job = Akka.system().scheduler().schedule(
+                Duration.create(conf.getMilliseconds("initialDelay", 60000L), TimeUnit.MILLISECONDS),
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        purge(batchSize, maxBatches).onFailure(new F.Callback<Throwable>() {
+                            @Override
+                            public void invoke(Throwable e) {
+                                Logger.error("Token purge failed", e);
+                            }
+                        });
+                    }
+                },
+                Akka.system().dispatcher());
+    }
+
+    public static synchronized void stop() {
+        if (job != null) {
+            job.cancel();
+            job = null;
+        }
+    }
+
+    /**
+     * Delete the expired tokens, one batch at a time, through {@link TokenRepository}.
+     *
+     * @param batchSize  rows deleted per statement
+     * @param maxBatches statements run at most
+     * @return a promise of the number of rows deleted
+     */
+    public static F.Promise<Long> purge(int batchSize, int maxBatches) {
+        final long start = System.nanoTime();
+        return deleteBatches(Token.expirationTime(), batchSize, maxBatches, 0).map(new F.Function<Long, Long>() {
+            @Override
+            public Long apply(Long total) {
+                RUN.recordSince(start);
+                lastRunRows = total;
+                if (total > 0) {
+                    Logger.debug("Purged " + total + " expired tokens");
+                }
+                return total;
+            }
+        });
+    }
+
+    /**
+     * Run the next statement once the previous one is done, until a batch comes back short.
+     */
+    private static F.Promise<Long> deleteBatches(final long before, final int batchSize, final int batchesLeft, final long total) {
+        if (batchesLeft <= 0) {
+            return F.Promise.pure(total);
+        }
+        return TokenRepository.deleteCreatedBefore(before, batchSize).flatMap(new F.Function<Integer, F.Promise<Long>>() {
+            @Override
+            public F.Promise<Long> apply(Integer deleted) {
+                PURGED.add(deleted);
+                if (deleted < batchSize) {
+                    return F.Promise.pure(total + deleted);
+                }
+                return deleteBatches(before, batchSize, batchesLeft - 1, total + deleted);
+            }
+        });
+    }
+}
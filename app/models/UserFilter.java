@@ -0,0 +1,38 @@
+package models;
+
+import com.avaje.ebean.ExpressionList;
+
+/**
+ * Criteria of the admin user listing. A null field doesn't filter.
+ */
+public class UserFilter {
+
+    public Boolean validated;
+
+    /**
+     * true for users with an MFA email, false for users without.
+     */
+    public Boolean mfaEnabled;
+
+    public String mfaEmail;
+
+    /**
+     * Add the criteria to a query.
+     */
+    public <T> ExpressionList<T> apply(ExpressionList<T> where) {
+        if (validated != null) {
+            where.eq("validated", validated);
+        }
+        if (mfaEnabled != null) {
+            if (mfaEnabled) {
+                where.isNotNull("mfa_email");
+            } else {
+                where.isNull("mfa_email");
+            }
+        }
+        if (mfaEmail != null) {
+            where.eq("mfa_email", mfaEmail);
+        }
+        return where;
+    }
+}
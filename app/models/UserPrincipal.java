@@ -0,0 +1,31 @@
+package models;
+
+/**
+ * Immutable snapshot of the fields needed to decide whether a session is authenticated
+ * and to render the pages of a logged-in user.
+ * Whether the session passed the second factor is tracked by {@link models.auth.PendingAuth}.
+ */
+public class UserPrincipal {
+
+    public final String email;
+
+    public final String fullname;
+
+    public final String mfa_email;
+
+    public final boolean validated;
+
+    public UserPrincipal(String email, String fullname, String mfa_email, Boolean validated) {
+        this.email = email;
+        this.fullname = fullname;
+        this.mfa_email = mfa_email;
+        this.validated = validated != null && validated;
+    }
+
+    /**
+     * @return true if the account has Acceptto MFA enabled
+     */
+    public boolean isMfaEnabled() {
+        return mfa_email != null && !mfa_email.isEmpty();
+    }
+}
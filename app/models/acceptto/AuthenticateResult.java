@@ -0,0 +1,20 @@
+package models.acceptto;
+
+/**
+ * Reply of /api/v9/authenticate_with_options.
+ */
+public class AuthenticateResult {
+
+    public Boolean success;
+
+    public String message;
+
+    public String channel;
+
+    /**
+     * @return true unless Acceptto explicitly refused the request
+     */
+    public boolean isSuccess() {
+        return success == null || success;
+    }
+}
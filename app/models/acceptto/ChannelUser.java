@@ -0,0 +1,17 @@
+package models.acceptto;
+
+/**
+ * Reply of /api/v9/get_user_by_websocket_channel.
+ */
+public class ChannelUser {
+
+    public Boolean success;
+
+    public String message;
+
+    public String user_email;
+
+    public boolean isSuccess() {
+        return success != null && success;
+    }
+}
@@ -0,0 +1,17 @@
+package models.acceptto;
+
+/**
+ * Reply of /api/v9/check.
+ */
+public class CheckResult {
+
+    public String status;
+
+    public boolean isApproved() {
+        return "approved".equals(status);
+    }
+
+    public boolean isRejected() {
+        return "rejected".equals(status);
+    }
+}
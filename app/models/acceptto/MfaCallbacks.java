@@ -0,0 +1,149 @@
+package models.acceptto;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import models.Settings;
+import models.utils.Counter;
+import models.utils.Metrics;
+import models.utils.TtlCache;
+import play.Configuration;
+import play.Play;
+import play.libs.Json;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcomes of MFA requests pushed by Acceptto to /auth/mfa/callback, so that an approval
+ * doesn't need another call to /api/v9/check.
+ * <p/>
+ * The body is JSON: {"channel": "...", "status": "approved" or "rejected", "timestamp": epoch seconds}.
+ * It is signed with HMAC-SHA256 keyed by mfa.app.secret; the hex signature comes in the
+ * X-Acceptto-Signature header, optionally prefixed with "sha256=".
+ * <p/>
+ * A callback older or newer than mfa.callback.maxSkew is refused, and a signature already seen
+ * within that window is answered without effect, so a captured callback can't be replayed.
+ * Verified outcomes go to {@link MfaStatusHub#complete}, where the follow-up /auth/mfa_check
+ * and the waiting browsers find them.
+ */
+public class MfaCallbacks {
+
+    public static final String SIGNATURE_HEADER = "X-Acceptto-Signature";
+
+    private static final String SIGNATURE_PREFIX = "sha256=";
+
+    public enum Outcome {
+        /** the outcome was recorded */
+        ACCEPTED,
+        /** the same callback was already handled */
+        DUPLICATE,
+        /** the channel already has another outcome */
+        CONFLICT,
+        INVALID_SIGNATURE,
+        EXPIRED,
+        MALFORMED
+    }
+
+    private static final Map<Outcome, Counter> OUTCOMES = new EnumMap<Outcome, Counter>(Outcome.class);
+
+    static {
+        for (Outcome outcome : Outcome.values()) {
+            OUTCOMES.put(outcome, Metrics.counter("mfa_callbacks_total", "Signed MFA callbacks received",
+                    "outcome=\"" + outcome.name().toLowerCase(Locale.ENGLISH) + "\""));
+        }
+    }
+
+    private static TtlCache<String, Boolean> seen;
+    private static long maxSkewMillis;
+
+    private static synchronized TtlCache<String, Boolean> seen() {
+        if (seen == null) {
+            Configuration conf = Play.application().configuration();
+            maxSkewMillis = conf.getMilliseconds("mfa.callback.maxSkew", 300000L);
+            // A signature stays valid for maxSkew on each side of its timestamp
+            seen = new TtlCache<String, Boolean>(conf.getInt("mfa.callback.maxEntries", 100000),
+                    2 * maxSkewMillis, TimeUnit.MILLISECONDS);
+            Metrics.cache("mfa_callback_signatures", seen);
+        }
+        return seen;
+    }
+
+    /**
+     * Verify a callback and record its outcome.
+     *
+     * @param body      the raw request body
+     * @param signature the X-Acceptto-Signature header
+     * @return what was done with the callback
+     */
+    public static Outcome handle(byte[] body, String signature) {
+        Outcome outcome = verifyAndComplete(body, signature);
+        OUTCOMES.get(outcome).increment();
+        return outcome;
+    }
+
+    private static Outcome verifyAndComplete(byte[] body, String signature) {
+        String secret = Settings.get().mfaAppSecret;
+        if (signature == null || secret == null) {
+            return Outcome.INVALID_SIGNATURE;
+        }
+        if (body == null) {
+            return Outcome.MALFORMED;
+        }
+        if (signature.startsWith(SIGNATURE_PREFIX)) {
+            signature = signature.substring(SIGNATURE_PREFIX.length());
+        }
+        String expected = sign(secret, body);
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                signature.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.US_ASCII))) {
+            return Outcome.INVALID_SIGNATURE;
+        }
+
+        // Only parsed once authenticated
+        JsonNode json;
+        try {
+            json = Json.parse(new String(body, StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            return Outcome.MALFORMED;
+        }
+        String channel = json.path("channel").asText(null);
+        String status = json.path("status").asText(null);
+        long timestamp = json.path("timestamp").asLong(0);
+        if (channel == null || channel.isEmpty() || timestamp <= 0
+                || !(MfaStatusHub.APPROVED.equals(status) || MfaStatusHub.REJECTED.equals(status))) {
+            return Outcome.MALFORMED;
+        }
+
+        TtlCache<String, Boolean> signatures = seen();
+        if (Math.abs(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(timestamp)) > maxSkewMillis) {
+            return Outcome.EXPIRED;
+        }
+        if (signatures.putIfAbsent(expected, Boolean.TRUE) != null) {
+            return Outcome.DUPLICATE;
+        }
+        return status.equals(MfaStatusHub.complete(channel, status)) ? Outcome.ACCEPTED : Outcome.CONFLICT;
+    }
+
+    /**
+     * @return the lowercase hex HMAC-SHA256 of the body
+     */
+    public static String sign(String secret, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] digest = mac.doFinal(body);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
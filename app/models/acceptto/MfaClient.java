@@ -0,0 +1,432 @@
+package models.acceptto;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ning.http.client.AsyncHttpClientConfig;
+import models.Settings;
+import models.utils.CircuitBreaker;
+import models.utils.Counter;
+import models.utils.Histogram;
+import models.utils.Metrics;
+import models.utils.OverloadedException;
+import models.utils.SingleFlight;
+import models.utils.TtlCache;
+import play.Configuration;
+import play.Play;
+import play.libs.F;
+import play.libs.ws.WSClient;
+import play.libs.ws.WSRequest;
+import play.libs.ws.WSResponse;
+import play.libs.ws.ning.NingWSClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client of the Acceptto MFA API.
+ * <p/>
+ * Uses its own keep-alive connection pool, so a slow Acceptto response can't hold the
+ * connections of Play's default WS client, and decodes replies straight into small DTOs.
+ */
+public class MfaClient {
+
+    private static final String API = "/api/v9/";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static volatile MfaClient instance;
+
+    /**
+     * Latency and error counters of one Acceptto endpoint.
+     */
+    private static class EndpointMetrics {
+        final Histogram latency;
+        final Counter errorStatus;
+        final Counter failures;
+        final F.Callback<Throwable> onFailure;
+
+        EndpointMetrics(String endpoint) {
+            String labels = "endpoint=\"" + endpoint + "\"";
+            latency = Metrics.histogram("mfa_api_request_duration_seconds", "Latency of Acceptto API calls", labels);
+            errorStatus = Metrics.counter("mfa_api_error_status_total", "Acceptto API replies with a 4xx or 5xx status", labels);
+            failures = Metrics.counter("mfa_api_failures_total", "Acceptto API calls that failed or timed out", labels);
+            onFailure = new F.Callback<Throwable>() {
+                @Override
+                public void invoke(Throwable throwable) {
+                    failures.increment();
+                }
+            };
+        }
+    }
+
+    private static final String[] ENDPOINTS = {"is_user_valid", "authenticate_with_options", "check", "get_user_by_websocket_channel"};
+
+    private static final Map<String, EndpointMetrics> METRICS = new HashMap<String, EndpointMetrics>();
+
+    static {
+        for (String endpoint : ENDPOINTS) {
+            METRICS.put(endpoint, new EndpointMetrics(endpoint));
+        }
+    }
+
+    /**
+     * Circuit breaker and concurrency limit of one Acceptto endpoint.
+     * Each endpoint has its own, so a slow endpoint can't take the capacity of the others.
+     */
+    private static class Guard {
+        final CircuitBreaker breaker;
+        final Semaphore bulkhead;
+        final Counter rejectedOpen;
+        final Counter rejectedFull;
+
+        Guard(String endpoint, Configuration breakerConf, final int maxConcurrent) {
+            final String labels = "endpoint=\"" + endpoint + "\"";
+            breaker = new CircuitBreaker(endpoint,
+                    breakerConf.getInt("windowSize", 20),
+                    breakerConf.getInt("minimumCalls", 10),
+                    breakerConf.getDouble("failureRate", 0.5),
+                    breakerConf.getDouble("slowCallRate", 0.8),
+                    breakerConf.getMilliseconds("slowCall", 2000L),
+                    breakerConf.getMilliseconds("openDuration", 30000L),
+                    breakerConf.getInt("probes", 3),
+                    new CircuitBreaker.Listener() {
+                        @Override
+                        public void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+                            play.Logger.warn("Acceptto " + breaker.name() + " circuit " + from + " -> " + to);
+                        }
+                    });
+            bulkhead = new Semaphore(maxConcurrent);
+            rejectedOpen = Metrics.counter("mfa_api_rejected_total", "Acceptto API calls refused without being sent",
+                    labels + ",reason=\"circuit_open\"");
+            rejectedFull = Metrics.counter("mfa_api_rejected_total", "Acceptto API calls refused without being sent",
+                    labels + ",reason=\"bulkhead_full\"");
+            Metrics.gauge("mfa_api_circuit_state", "Circuit state of an Acceptto endpoint: 0 closed, 1 half-open, 2 open",
+                    labels, new Metrics.Gauge() {
+                        @Override
+                        public double value() {
+                            return breaker.state().ordinal();
+                        }
+                    });
+            Metrics.gauge("mfa_api_in_flight", "Acceptto API calls in flight", labels, new Metrics.Gauge() {
+                @Override
+                public double value() {
+                    return maxConcurrent - bulkhead.availablePermits();
+                }
+            });
+        }
+    }
+
+    private final Map<String, Guard> guards = new HashMap<String, Guard>();
+
+    private final WSClient ws;
+    private final String site;
+    private final String uid;
+    private final String secret;
+    private final Configuration timeouts;
+    private final int defaultTimeout;
+
+    // -- is_user_valid answers, keyed by email
+    private final TtlCache<String, UserValidity> validities;
+    private final SingleFlight<String, UserValidity> validityLookups = new SingleFlight<String, UserValidity>();
+    private final long registeredTtl;
+    private final long unregisteredTtl;
+    private final long unfinishedTtl;
+
+    // -- check answers, keyed by channel and email
+    private final TtlCache<String, CheckResult> checkResults;
+    private final SingleFlight<String, CheckResult> checks = new SingleFlight<String, CheckResult>();
+
+    MfaClient(Configuration conf) {
+        Settings settings = Settings.get();
+        this.site = settings.mfaSite;
+        this.uid = settings.mfaAppUid;
+        this.secret = settings.mfaAppSecret;
+
+        Configuration client = conf.getConfig("mfa.client");
+        this.timeouts = client.getConfig("timeout");
+        this.defaultTimeout = client.getMilliseconds("readTimeout", 5000L).intValue();
+
+        AsyncHttpClientConfig config = new AsyncHttpClientConfig.Builder()
+                .setConnectTimeout(client.getMilliseconds("connectTimeout", 2000L).intValue())
+                .setReadTimeout(defaultTimeout)
+                .setRequestTimeout(defaultTimeout)
+                .setMaxConnections(client.getInt("maxConnections", 200))
+                .setMaxConnectionsPerHost(client.getInt("maxConnections", 200))
+                .setAllowPoolingConnections(true)
+                .setPooledConnectionIdleTimeout(client.getMilliseconds("idleTimeout", 60000L).intValue())
+                .setConnectionTTL(client.getMilliseconds("connectionTtl", 300000L).intValue())
+                .setCompressionEnforced(true)
+                .build();
+        this.ws = new NingWSClient(config);
+
+        Configuration cache = conf.getConfig("mfa.cache");
+        this.validities = new TtlCache<String, UserValidity>(
+                cache.getInt("maxSize", 10000),
+                cache.getMilliseconds("registeredTtl", 600000L),
+                TimeUnit.MILLISECONDS);
+        this.registeredTtl = cache.getMilliseconds("registeredTtl", 600000L);
+        this.unregisteredTtl = cache.getMilliseconds("unregisteredTtl", 120000L);
+        this.unfinishedTtl = cache.getMilliseconds("unfinishedTtl", 15000L);
+        Metrics.cache("mfa_user_validity", validities);
+
+        this.checkResults = new TtlCache<String, CheckResult>(
+                cache.getInt("checkMaxSize", 10000),
+                cache.getMilliseconds("checkResultTtl", 60000L),
+                TimeUnit.MILLISECONDS);
+        Metrics.cache("mfa_check_result", checkResults);
+        Metrics.counterFunction("mfa_check_shared_total", "MFA checks answered by a check already in flight", "", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return checks.shared();
+            }
+        });
+
+        Configuration breaker = conf.getConfig("mfa.breaker");
+        Configuration bulkhead = conf.getConfig("mfa.bulkhead");
+        for (String endpoint : ENDPOINTS) {
+            guards.put(endpoint, new Guard(endpoint, breaker, bulkhead.getInt(endpoint, 50)));
+        }
+    }
+
+    /**
+     * @return the shared client, created on first use
+     */
+    public static MfaClient get() {
+        MfaClient client = instance;
+        if (client == null) {
+            synchronized (MfaClient.class) {
+                client = instance;
+                if (client == null) {
+                    client = new MfaClient(Play.application().configuration());
+                    instance = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Release the connection pool. Called when the application stops; the next {@link #get()} creates a new client.
+     */
+    public static synchronized void shutdown() {
+        MfaClient client = instance;
+        if (client != null) {
+            instance = null;
+            try {
+                client.ws.close();
+            } catch (Exception e) {
+                play.Logger.warn("Cannot close the Acceptto client", e);
+            }
+        }
+    }
+
+    /**
+     * @return the Acceptto site, e.g. https://mfa.acceptto.com
+     */
+    public String site() {
+        return site;
+    }
+
+    /**
+     * Check whether an email belongs to an Acceptto user.
+     * <p/>
+     * Answers are cached per email, with a shorter life for users who haven't finished
+     * registering. Concurrent lookups for the same email share a single request.
+     */
+    public F.Promise<UserValidity> isUserValid(final String email) {
+        UserValidity cached = validities.get(email);
+        if (cached != null) {
+            return F.Promise.pure(cached);
+        }
+        return validityLookups.execute(email, new SingleFlight.Call<UserValidity>() {
+            @Override
+            public F.Promise<UserValidity> start() {
+                return post("is_user_valid", request("is_user_valid")
+                        .setQueryParameter("email", email), UserValidity.class)
+                        .map(new F.Function<UserValidity, UserValidity>() {
+                            @Override
+                            public UserValidity apply(UserValidity validity) {
+                                validities.put(email, validity, ttlOf(validity), TimeUnit.MILLISECONDS);
+                                return validity;
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * @return the is_user_valid cache, for its hit/miss counters
+     */
+    public TtlCache<String, UserValidity> validityCache() {
+        return validities;
+    }
+
+    private long ttlOf(UserValidity validity) {
+        if (validity.isRegistered()) {
+            return registeredTtl;
+        }
+        return validity.isValid() ? unfinishedTtl : unregisteredTtl;
+    }
+
+    /**
+     * Push an authentication request to the user's device.
+     *
+     * @param mfaEmail    the Acceptto email of the user
+     * @param message     message shown on the device
+     * @param type        request type, e.g. Login
+     * @param callbackUrl where Acceptto sends the browser back
+     */
+    public F.Promise<AuthenticateResult> authenticate(String mfaEmail, String message, String type, String callbackUrl) {
+        return post("authenticate_with_options", request("authenticate_with_options")
+                .setQueryParameter("email", mfaEmail)
+                .setQueryParameter("message", message)
+                .setQueryParameter("type", type)
+                .setQueryParameter("callback_url", callbackUrl), AuthenticateResult.class);
+    }
+
+    /**
+     * Fetch the status of a pending authentication request.
+     * <p/>
+     * Concurrent checks of the same channel share a single request, and a final answer
+     * (approved or rejected) is remembered for mfa.cache.checkResultTtl, so repeated
+     * callbacks and refreshes are answered without calling Acceptto.
+     */
+    public F.Promise<CheckResult> check(String channel, String mfaEmail) {
+        return check(channel, mfaEmail, true);
+    }
+
+    /**
+     * {@link #check} for a background caller that bounds its own concurrency, like the
+     * {@link MfaStatusHub} poller: the call goes through the circuit breaker of check but
+     * takes no permit of its bulkhead, which stays for the browsers.
+     */
+    public F.Promise<CheckResult> backgroundCheck(String channel, String mfaEmail) {
+        return check(channel, mfaEmail, false);
+    }
+
+    private F.Promise<CheckResult> check(final String channel, final String mfaEmail, final boolean bulkheaded) {
+        final String key = channel + '|' + mfaEmail;
+        CheckResult known = checkResults.get(key);
+        if (known != null) {
+            return F.Promise.pure(known);
+        }
+        return checks.execute(key, new SingleFlight.Call<CheckResult>() {
+            @Override
+            public F.Promise<CheckResult> start() {
+                return post("check", request("check")
+                        .setQueryParameter("channel", channel)
+                        .setQueryParameter("email", mfaEmail), CheckResult.class, bulkheaded)
+                        .map(new F.Function<CheckResult, CheckResult>() {
+                            @Override
+                            public CheckResult apply(CheckResult result) {
+                                if (result.isApproved() || result.isRejected()) {
+                                    checkResults.put(key, result);
+                                }
+                                return result;
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Resolve the user who scanned a login QR code.
+     */
+    public F.Promise<ChannelUser> userByChannel(String websocketChannel) {
+        return post("get_user_by_websocket_channel", request("get_user_by_websocket_channel")
+                .setQueryParameter("websocket_channel", websocketChannel), ChannelUser.class);
+    }
+
+    private WSRequest request(String endpoint) {
+        return ws.url(site + API + endpoint)
+                .setContentType("application/x-www-form-urlencoded")
+                .setRequestTimeout(timeoutOf(endpoint))
+                .setQueryParameter("uid", uid)
+                .setQueryParameter("secret", secret);
+    }
+
+    private long timeoutOf(String endpoint) {
+        if (timeouts != null && timeouts.keys().contains(endpoint)) {
+            return timeouts.getMilliseconds(endpoint);
+        }
+        return defaultTimeout;
+    }
+
+    /**
+     * Send a request through the guard of its endpoint.
+     * Fails with an OverloadedException, without sending anything, if the circuit of the
+     * endpoint is open or its concurrency limit is reached.
+     */
+    private <T> F.Promise<T> post(String endpoint, WSRequest request, Class<T> type) {
+        return post(endpoint, request, type, true);
+    }
+
+    /**
+     * @param bulkheaded false to skip the concurrency limit, for callers that bound their own
+     */
+    private <T> F.Promise<T> post(String endpoint, WSRequest request, final Class<T> type, final boolean bulkheaded) {
+        final EndpointMetrics metrics = METRICS.get(endpoint);
+        final Guard guard = guards.get(endpoint);
+
+        if (bulkheaded && !guard.bulkhead.tryAcquire()) {
+            guard.rejectedFull.increment();
+            return F.Promise.throwing(new OverloadedException("Too many Acceptto " + endpoint + " calls in flight", 1));
+        }
+        if (!guard.breaker.tryAcquire()) {
+            if (bulkheaded) {
+                guard.bulkhead.release();
+            }
+            guard.rejectedOpen.increment();
+            return F.Promise.throwing(new OverloadedException("Acceptto " + endpoint + " circuit is open",
+                    guard.breaker.retryAfterSeconds()));
+        }
+
+        final long start = System.nanoTime();
+        F.Promise<WSResponse> sent = request.post("");
+        sent.onFailure(new F.Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable throwable) {
+                if (bulkheaded) {
+                    guard.bulkhead.release();
+                }
+                guard.breaker.record(System.nanoTime() - start, false);
+            }
+        });
+        F.Promise<T> reply = sent.map(new F.Function<WSResponse, T>() {
+            @Override
+            public T apply(WSResponse response) throws Throwable {
+                long duration = System.nanoTime() - start;
+                metrics.latency.record(duration);
+                if (bulkheaded) {
+                    guard.bulkhead.release();
+                }
+                guard.breaker.record(duration, response.getStatus() < 500);
+                if (response.getStatus() >= 400) {
+                    metrics.errorStatus.increment();
+                }
+                try (InputStream body = response.getBodyAsStream()) {
+                    return decode(body, type);
+                }
+            }
+        });
+        reply.onFailure(metrics.onFailure);
+        return reply;
+    }
+
+    /**
+     * Decode an Acceptto reply, ignoring the fields the DTO doesn't declare.
+     *
+     * @param body the reply body
+     * @param type the DTO class
+     * @return the decoded reply
+     * @throws IOException if the body isn't valid JSON for this DTO
+     */
+    public static <T> T decode(InputStream body, Class<T> type) throws IOException {
+        return MAPPER.readValue(body, type);
+    }
+}
@@ -0,0 +1,306 @@
+package models.acceptto;
+
+import akka.actor.Cancellable;
+import models.utils.Counter;
+import models.utils.Metrics;
+import models.utils.OverloadedException;
+import models.utils.TtlCache;
+import play.Configuration;
+import play.Logger;
+import play.Play;
+import play.libs.Akka;
+import play.libs.EventSource;
+import play.libs.F;
+import scala.concurrent.duration.Duration;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+/**
+ * Tracks the browsers waiting for the outcome of an MFA request and pushes it to them.
+ * <p/>
+ * Each waiting browser holds one server-sent events stream. Streams are plain chunked
+ * responses, so idle ones cost no thread. A single scheduled task asks Acceptto for the
+ * status of channels that still have listeners, at most mfa.push.maxPollsInFlight at a time
+ * and outside the bulkhead of the browsers' checks, and the terminal status is remembered
+ * for a short while so the follow-up {@code /auth/mfa_check} can be answered locally.
+ */
+public class MfaStatusHub {
+
+    public static final String APPROVED = "approved";
+    public static final String REJECTED = "rejected";
+    public static final String EXPIRED = "expired";
+
+    private static class Pending {
+        final String mfaEmail;
+        final long createdAt = System.nanoTime();
+        final CopyOnWriteArrayList<EventSource> listeners = new CopyOnWriteArrayList<EventSource>();
+        final AtomicBoolean inFlight = new AtomicBoolean();
+        volatile long lastPolledAt = Long.MIN_VALUE;
+
+        Pending(String mfaEmail) {
+            this.mfaEmail = mfaEmail;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+    private static TtlCache<String, String> terminal;
+    private static long maxWaitNanos;
+    private static int maxListeners;
+    private static Semaphore pollPermits;
+    private static Cancellable poller;
+
+    private static final Counter POLL_REJECTED = pollFailures("rejected");
+    private static final Counter POLL_FAILED = pollFailures("error");
+
+    private static Counter pollFailures(String reason) {
+        return Metrics.counter("mfa_push_poll_failures_total", "Status polls of pending MFA channels that got no answer",
+                "reason=\"" + reason + "\"");
+    }
+
+    /**
+     * @return true if browsers should wait on the status stream instead of the Acceptto page
+     */
+    public static boolean isEnabled() {
+        return poller != null;
+    }
+
+    /**
+     * Start polling Acceptto for channels that have listeners. Called when the application starts.
+     */
+    public static synchronized void start() {
+        if (poller != null) {
+            return;
+        }
+        Configuration conf = Play.application().configuration();
+        // Signed callbacks record outcomes here even when browsers don't wait on the stream
+        terminal = new TtlCache<String, String>(
+                conf.getInt("mfa.push.maxChannels", 100000),
+                conf.getMilliseconds("mfa.push.resultTtl", 60000L),
+                TimeUnit.MILLISECONDS);
+        if (!conf.getBoolean("mfa.push.enabled", true)) {
+            return;
+        }
+        maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(conf.getMilliseconds("mfa.push.maxWait", 180000L));
+        maxListeners = conf.getInt("mfa.push.maxListenersPerChannel", 4);
+        pollPermits = new Semaphore(conf.getInt("mfa.push.maxPollsInFlight", 10));
+        Metrics.gauge("mfa_push_pending_channels", "MFA channels with a waiting browser", "", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return pending.size();
+            }
+        });
+
+        long interval = conf.getMilliseconds("mfa.push.pollInterval", 2000L);
+        poller = Akka.system().scheduler().schedule(
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        poll();
+                    }
+                },
+                Akka.system().dispatcher());
+    }
+
+    public static synchronized void stop() {
+        if (poller != null) {
+            poller.cancel();
+            poller = null;
+        }
+        for (String channel : pending.keySet()) {
+            publish(channel, EXPIRED);
+        }
+    }
+
+    /**
+     * Attach a browser stream to a channel. If the outcome is already known it is sent at once.
+     *
+     * @param channel  the MFA channel
+     * @param mfaEmail the Acceptto email the request was pushed to
+     * @param listener the stream of the waiting browser
+     */
+    public static void subscribe(final String channel, final String mfaEmail, final EventSource listener) {
+        String known = terminalStatus(channel);
+        if (known != null) {
+            send(listener, known);
+            listener.close();
+            return;
+        }
+
+        final boolean[] added = new boolean[1];
+        // Adding inside compute: publish and unsubscribe can't remove the entry in between
+        pending.compute(channel, new BiFunction<String, Pending, Pending>() {
+            @Override
+            public Pending apply(String key, Pending entry) {
+                if (entry == null) {
+                    entry = new Pending(mfaEmail);
+                }
+                if (entry.listeners.size() < maxListeners) {
+                    entry.listeners.add(listener);
+                    added[0] = true;
+                }
+                return entry;
+            }
+        });
+        if (!added[0]) {
+            listener.close();
+            return;
+        }
+        listener.onDisconnected(new F.Callback0() {
+            @Override
+            public void invoke() {
+                unsubscribe(channel, listener);
+            }
+        });
+
+        // The outcome may have been published between the first check and the compute
+        known = terminalStatus(channel);
+        if (known != null) {
+            publish(channel, known);
+        }
+    }
+
+    public static void unsubscribe(String channel, final EventSource listener) {
+        pending.computeIfPresent(channel, new BiFunction<String, Pending, Pending>() {
+            @Override
+            public Pending apply(String key, Pending entry) {
+                entry.listeners.remove(listener);
+                return entry.listeners.isEmpty() ? null : entry;
+            }
+        });
+    }
+
+    /**
+     * Record the outcome of a channel and push it to every listener.
+     *
+     * @param channel the MFA channel
+     * @param status  approved, rejected or expired
+     */
+    public static void publish(String channel, String status) {
+        if (terminal != null && !EXPIRED.equals(status)) {
+            terminal.put(channel, status);
+        }
+        Pending entry = pending.remove(channel);
+        if (entry != null) {
+            for (EventSource listener : entry.listeners) {
+                send(listener, status);
+                listener.close();
+            }
+        }
+    }
+
+    /**
+     * Record an outcome reported by Acceptto's signed callback. The first outcome of a channel wins,
+     * so a callback delivered twice changes nothing.
+     *
+     * @param channel the MFA channel
+     * @param status  approved or rejected
+     * @return the outcome recorded for the channel, which differs from status if another was known
+     */
+    public static synchronized String complete(String channel, String status) {
+        String known = terminalStatus(channel);
+        if (known != null) {
+            return known;
+        }
+        publish(channel, status);
+        return status;
+    }
+
+    /**
+     * @param channel the MFA channel
+     * @return approved or rejected if the outcome is known, null otherwise
+     */
+    public static String terminalStatus(String channel) {
+        if (channel == null || terminal == null) {
+            return null;
+        }
+        return terminal.get(channel);
+    }
+
+    /**
+     * @return the number of channels with at least one waiting browser
+     */
+    public static int pendingChannels() {
+        return pending.size();
+    }
+
+    /**
+     * Ask Acceptto for the status of the channels polled least recently, as many as the poller
+     * has permits left: mfa.push.maxPollsInFlight calls at most, whatever the number of channels.
+     */
+    private static void poll() {
+        long now = System.nanoTime();
+        int budget = pollPermits.availablePermits();
+        // The budget channels polled least recently, the most recent at the head
+        PriorityQueue<Map.Entry<String, Pending>> due = new PriorityQueue<Map.Entry<String, Pending>>(Math.max(1, budget),
+                new Comparator<Map.Entry<String, Pending>>() {
+                    @Override
+                    public int compare(Map.Entry<String, Pending> a, Map.Entry<String, Pending> b) {
+                        return Long.compare(b.getValue().lastPolledAt, a.getValue().lastPolledAt);
+                    }
+                });
+        for (Map.Entry<String, Pending> e : pending.entrySet()) {
+            if (now - e.getValue().createdAt > maxWaitNanos) {
+                publish(e.getKey(), EXPIRED);
+            } else if (budget > 0 && !e.getValue().inFlight.get()) {
+                due.add(e);
+                if (due.size() > budget) {
+                    due.poll();
+                }
+            }
+        }
+
+        for (Map.Entry<String, Pending> e : due) {
+            final String channel = e.getKey();
+            final Pending entry = e.getValue();
+            if (!pollPermits.tryAcquire()) {
+                break;
+            }
+            // At most one upstream check per channel at a time.
+            if (!entry.inFlight.compareAndSet(false, true)) {
+                pollPermits.release();
+                continue;
+            }
+            entry.lastPolledAt = now;
+            F.Promise<CheckResult> checked = MfaClient.get().backgroundCheck(channel, entry.mfaEmail);
+            checked.onRedeem(new F.Callback<CheckResult>() {
+                @Override
+                public void invoke(CheckResult result) {
+                    entry.inFlight.set(false);
+                    pollPermits.release();
+                    if (result.isApproved() || result.isRejected()) {
+                        publish(channel, result.status);
+                    }
+                }
+            });
+            checked.onFailure(new F.Callback<Throwable>() {
+                @Override
+                public void invoke(Throwable throwable) {
+                    entry.inFlight.set(false);
+                    pollPermits.release();
+                    // Retried on a later tick; an open circuit would otherwise log once per channel and tick
+                    if (throwable instanceof OverloadedException) {
+                        POLL_REJECTED.increment();
+                    } else {
+                        POLL_FAILED.increment();
+                        Logger.debug("MFA status poll failed for channel " + channel + ": " + throwable.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    private static void send(EventSource listener, String status) {
+        listener.send(EventSource.Event.event(status).withName("status"));
+    }
+}
@@ -0,0 +1,27 @@
+package models.acceptto;
+
+/**
+ * Reply of /api/v9/is_user_valid.
+ */
+public class UserValidity {
+
+    public Boolean valid;
+
+    public String registration_state;
+
+    /**
+     * @return true if the email belongs to an Acceptto user who finished registering
+     */
+    public boolean isRegistered() {
+        return isValid() && "finished".equals(registration_state);
+    }
+
+    public boolean isValid() {
+        return valid != null && valid;
+    }
+
+    @Override
+    public String toString() {
+        return "UserValidity{valid=" + valid + ", registration_state=" + registration_state + "}";
+    }
+}
@@ -0,0 +1,218 @@
+package models.audit;
+
+import akka.actor.Cancellable;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlUpdate;
+import models.repositories.JdbcExecution;
+import models.utils.Counter;
+import models.utils.Histogram;
+import models.utils.Metrics;
+import models.utils.RingBuffer;
+import play.Configuration;
+import play.Logger;
+import play.Play;
+import play.libs.Akka;
+import play.mvc.Http;
+import scala.concurrent.duration.Duration;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only record of the authentication steps, in the audit_event table.
+ * <p/>
+ * {@link #record} only adds the event to a bounded ring buffer: a request never waits for
+ * the database. audit.flushInterval after its previous flush ended, the writer empties the
+ * buffer on the JDBC context, audit.batchSize events per multi-row insert. When the buffer is
+ * full, events are dropped and counted in audit_events_dropped_total.
+ */
+public class AuditLog {
+
+    public enum Type {
+        LOGIN, MFA_PUSH, MFA_CHECK, MFA_CALLBACK, QR_LOGIN, MFA_ENABLE
+    }
+
+    /**
+     * One authentication step.
+     */
+    public static class Event {
+        public final long time;
+        public final Type type;
+        public final String email;
+        public final String ip;
+        public final String outcome;
+
+        public Event(long time, Type type, String email, String ip, String outcome) {
+            this.time = time;
+            this.type = type;
+            this.email = email;
+            this.ip = ip;
+            this.outcome = outcome;
+        }
+    }
+
+    private static final Counter RECORDED = Metrics.counter("audit_events_total",
+            "Audit events handed to the audit log", "");
+    private static final Counter WRITTEN = Metrics.counter("audit_events_written_total",
+            "Audit events inserted", "");
+    private static final Counter DROPPED_FULL = dropped("buffer_full");
+    private static final Counter DROPPED_FAILED = dropped("write_failed");
+    private static final Histogram FLUSH = Metrics.histogram("audit_flush_duration_seconds",
+            "Duration of a multi-row insert of audit events", "");
+
+    private static Counter dropped(String reason) {
+        return Metrics.counter("audit_events_dropped_total", "Audit events lost", "reason=\"" + reason + "\"");
+    }
+
+    private static volatile RingBuffer<Event> buffer;
+    private static int batchSize;
+    private static Writer writer;
+
+    /**
+     * Flushes the buffer, then schedules the next flush audit.flushInterval after this one ended:
+     * a slow database delays the next flush rather than piling them up on the JDBC context.
+     */
+    private static class Writer implements Runnable {
+        private final long interval;
+        private boolean cancelled;
+        private Cancellable next;
+
+        Writer(long interval) {
+            this.interval = interval;
+        }
+
+        synchronized void schedule() {
+            if (!cancelled) {
+                next = Akka.system().scheduler().scheduleOnce(
+                        Duration.create(interval, TimeUnit.MILLISECONDS), this, JdbcExecution.context());
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (next != null) {
+                next.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                flush();
+            } finally {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Start the writer configured by audit.*. Called when the application starts.
+     */
+    public static synchronized void start() {
+        Configuration conf = Play.application().configuration().getConfig("audit");
+        if (writer != null || conf == null || !conf.getBoolean("enabled", true)) {
+            return;
+        }
+        final RingBuffer<Event> events = new RingBuffer<Event>(conf.getInt("bufferSize", 16384));
+        batchSize = conf.getInt("batchSize", 500);
+        Metrics.gauge("audit_buffer_events", "Audit events waiting to be written", "", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return events.size();
+            }
+        });
+        buffer = events;
+
+        writer = new Writer(conf.getMilliseconds("flushInterval", 1000L));
+        writer.schedule();
+    }
+
+    /**
+     * Stop the writer and write what is left. Called when the application stops.
+     */
+    public static synchronized void stop() {
+        if (writer != null) {
+            writer.cancel();
+            writer = null;
+            flush();
+            buffer = null;
+        }
+    }
+
+    /**
+     * Record an authentication step. Never blocks.
+     *
+     * @param request the request, for the client IP
+     * @param type    the step
+     * @param email   the account, or null if unknown
+     * @param outcome how the step ended, e.g. success
+     */
+    public static void record(Http.Request request, Type type, String email, String outcome) {
+        RingBuffer<Event> events = buffer;
+        if (events == null) {
+            return;
+        }
+        RECORDED.increment();
+        Event event = new Event(System.currentTimeMillis(), type, email, request == null ? null : request.remoteAddress(), outcome);
+        if (!events.offer(event)) {
+            DROPPED_FULL.increment();
+        }
+    }
+
+    /**
+     * Write the buffered events, one batch per statement, until the buffer is empty.
+     * Synchronized: the buffer has a single consumer.
+     *
+     * @return the number of events written
+     */
+    public static synchronized int flush() {
+        RingBuffer<Event> events = buffer;
+        if (events == null) {
+            return 0;
+        }
+        int written = 0;
+        List<Event> batch = new ArrayList<Event>(batchSize);
+        while (events.drainTo(batch, batchSize) > 0) {
+            long start = System.nanoTime();
+            try {
+                insert(batch);
+                written += batch.size();
+                WRITTEN.add(batch.size());
+            } catch (Exception e) {
+                DROPPED_FAILED.add(batch.size());
+                Logger.error("Cannot write " + batch.size() + " audit events", e);
+            }
+            FLUSH.recordSince(start);
+            batch.clear();
+        }
+        return written;
+    }
+
+    private static void insert(List<Event> batch) {
+        StringBuilder sql = new StringBuilder("insert into audit_event (created_at, type, email, ip, outcome) values ");
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+        }
+        SqlUpdate insert = Ebean.createSqlUpdate(sql.toString());
+        int position = 1;
+        for (Event event : batch) {
+            insert.setParameter(position++, new Timestamp(event.time));
+            insert.setParameter(position++, event.type.name());
+            setString(insert, position++, event.email);
+            setString(insert, position++, event.ip);
+            setString(insert, position++, event.outcome);
+        }
+        insert.execute();
+    }
+
+    private static void setString(SqlUpdate insert, int position, String value) {
+        if (value == null) {
+            insert.setNullParameter(position, Types.VARCHAR);
+        } else {
+            insert.setParameter(position, value);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package models.auth;
+
+import play.Logger;
+import play.db.DB;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+
+/**
+ * Store shared by every node, kept in the pending_auth table.
+ */
+public class JdbcPendingAuthStore implements PendingAuthStore {
+
+    private static final String UPDATE =
+            "update pending_auth set email = ?, channel = ?, state = ?, expires_at = ? where id = ?";
+    private static final String INSERT =
+            "insert into pending_auth (email, channel, state, expires_at, id) values (?, ?, ?, ?, ?)";
+    private static final String SELECT =
+            "select email, channel, state from pending_auth where id = ? and expires_at > ?";
+    private static final String DELETE =
+            "delete from pending_auth where id = ?";
+    private static final String DELETE_EXPIRED =
+            "delete from pending_auth where expires_at <= ?";
+
+    @Override
+    public boolean put(String id, PendingAuth auth, long ttlMillis) {
+        Timestamp expiresAt = new Timestamp(System.currentTimeMillis() + ttlMillis);
+        try (Connection connection = DB.getConnection()) {
+            if (write(connection, UPDATE, id, auth, expiresAt) == 0) {
+                try {
+                    write(connection, INSERT, id, auth, expiresAt);
+                } catch (SQLException e) {
+                    if (!isDuplicateKey(e)) {
+                        throw e;
+                    }
+                    // Another request inserted the row since the update: update it instead
+                    write(connection, UPDATE, id, auth, expiresAt);
+                }
+            }
+            return true;
+        } catch (SQLException e) {
+            Logger.error("Cannot store pending authentication", e);
+            return false;
+        }
+    }
+
+    private static boolean isDuplicateKey(SQLException e) {
+        // SQLState class 23: integrity constraint violation
+        return e instanceof SQLIntegrityConstraintViolationException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+
+    private static int write(Connection connection, String sql, String id, PendingAuth auth, Timestamp expiresAt) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, auth.email);
+            statement.setString(2, auth.channel);
+            statement.setString(3, auth.state.name());
+            statement.setTimestamp(4, expiresAt);
+            statement.setString(5, id);
+            return statement.executeUpdate();
+        }
+    }
+
+    @Override
+    public PendingAuth get(String id) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT)) {
+            statement.setString(1, id);
+            statement.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    return new PendingAuth(rs.getString(1), rs.getString(2), PendingAuth.State.valueOf(rs.getString(3)));
+                }
+            }
+        } catch (SQLException e) {
+            Logger.error("Cannot read pending authentication", e);
+        }
+        return null;
+    }
+
+    @Override
+    public void remove(String id) {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement statement = connection.prepareStatement(DELETE)) {
+            statement.setString(1, id);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            Logger.error("Cannot remove pending authentication", e);
+        }
+    }
+
+    @Override
+    public void sweep() {
+        try (Connection connection = DB.getConnection();
+             PreparedStatement statement = connection.prepareStatement(DELETE_EXPIRED)) {
+            statement.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+            int deleted = statement.executeUpdate();
+            if (deleted > 0) {
+                Logger.debug("Purged " + deleted + " expired pending authentications");
+            }
+        } catch (SQLException e) {
+            Logger.error("Cannot purge pending authentications", e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return -1;
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return true;
+    }
+}
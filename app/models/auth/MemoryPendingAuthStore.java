@@ -0,0 +1,67 @@
+package models.auth;
+
+import models.utils.TtlCache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-node store, held in bounded TTL caches.
+ * <p/>
+ * Approved sessions and unfinished ones (pending or rejected) are kept apart, so that a flood
+ * of logins that never pass the second factor can't push approved sessions out. When the
+ * unfinished states reach their bound, new ones are refused instead of evicting live ones.
+ */
+public class MemoryPendingAuthStore implements PendingAuthStore {
+
+    private final TtlCache<String, PendingAuth> approved;
+    private final TtlCache<String, PendingAuth> unfinished;
+
+    /**
+     * @param maxApproved      approved sessions kept
+     * @param maxPending       pending or rejected sessions kept
+     * @param defaultTtlMillis default time-to-live of a state
+     */
+    public MemoryPendingAuthStore(int maxApproved, int maxPending, long defaultTtlMillis) {
+        this.approved = new TtlCache<String, PendingAuth>(maxApproved, defaultTtlMillis, TimeUnit.MILLISECONDS);
+        this.unfinished = new TtlCache<String, PendingAuth>(maxPending, defaultTtlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean put(String id, PendingAuth auth, long ttlMillis) {
+        if (auth.state == PendingAuth.State.APPROVED) {
+            unfinished.invalidate(id);
+            approved.put(id, auth, ttlMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        approved.invalidate(id);
+        return unfinished.offer(id, auth, ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public PendingAuth get(String id) {
+        PendingAuth auth = approved.get(id);
+        return auth != null ? auth : unfinished.get(id);
+    }
+
+    @Override
+    public void remove(String id) {
+        approved.invalidate(id);
+        unfinished.invalidate(id);
+    }
+
+    @Override
+    public void sweep() {
+        unfinished.removeExpired(Integer.MAX_VALUE);
+        approved.removeExpired(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int size() {
+        return approved.size() + unfinished.size();
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+}
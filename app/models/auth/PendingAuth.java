@@ -0,0 +1,182 @@
+package models.auth;
+
+import akka.actor.Cancellable;
+import models.utils.Metrics;
+import models.utils.OverloadedException;
+import play.Configuration;
+import play.Play;
+import play.libs.Akka;
+import play.mvc.Http;
+import scala.concurrent.duration.Duration;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Second-factor state of a logged-in session.
+ * <p/>
+ * A password login starts a PENDING state, identified by a random id kept in the session
+ * cookie. Acceptto's answer turns it into APPROVED or REJECTED. Keeping this out of the
+ * local_user row means a login step never writes to local_user.
+ */
+public class PendingAuth {
+
+    public enum State {
+        PENDING, APPROVED, REJECTED
+    }
+
+    /**
+     * Session key holding the authentication id.
+     */
+    public static final String SESSION_KEY = "auth";
+
+    public final String email;
+
+    public final String channel;
+
+    public final State state;
+
+    public PendingAuth(String email, String channel, State state) {
+        this.email = email;
+        this.channel = channel;
+        this.state = state;
+    }
+
+    // -- Store
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static PendingAuthStore store;
+    private static long pendingTtl;
+    private static long approvedTtl;
+    private static Cancellable sweeper;
+
+    /**
+     * Create the store configured by auth.store.*. Called when the application starts.
+     */
+    public static synchronized void start() {
+        Configuration conf = Play.application().configuration().getConfig("auth.store");
+        pendingTtl = conf.getMilliseconds("pendingTtl", 300000L);
+        approvedTtl = conf.getMilliseconds("approvedTtl", 43200000L);
+
+        if ("jdbc".equals(conf.getString("mode", "memory"))) {
+            store = new JdbcPendingAuthStore();
+        } else {
+            store = new MemoryPendingAuthStore(conf.getInt("maxSize", 100000), conf.getInt("maxPending", 100000), pendingTtl);
+        }
+
+        Metrics.gauge("pending_auth_entries", "Sessions tracked by the pending authentication store", "", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return store.size();
+            }
+        });
+
+        long interval = conf.getMilliseconds("sweepInterval", 60000L);
+        sweeper = Akka.system().scheduler().schedule(
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        store.sweep();
+                    }
+                },
+                Akka.system().dispatcher());
+    }
+
+    public static synchronized void stop() {
+        if (sweeper != null) {
+            sweeper.cancel();
+            sweeper = null;
+        }
+    }
+
+    public static PendingAuthStore store() {
+        return store;
+    }
+
+    /**
+     * Start a pending second-factor authentication for the session.
+     *
+     * @throws OverloadedException if the store is full of pending authentications
+     *
+     * @param session the session of the user
+     * @param email   the local email of the user
+     */
+    public static void begin(Http.Session session, String email) {
+        String id = newId();
+        if (!store.put(id, new PendingAuth(email, null, State.PENDING), pendingTtl)) {
+            throw new OverloadedException("Too many pending authentications", 1);
+        }
+        session.put(SESSION_KEY, id);
+    }
+
+    /**
+     * Remember the Acceptto channel of the pending authentication.
+     */
+    public static void attachChannel(Http.Session session, String channel) {
+        String id = session.get(SESSION_KEY);
+        PendingAuth auth = id == null ? null : store.get(id);
+        if (auth != null) {
+            store.put(id, new PendingAuth(auth.email, channel, auth.state), pendingTtl);
+        }
+    }
+
+    /**
+     * Mark the session as having passed the second factor.
+     * Starts a new authentication id if the session has none.
+     */
+    public static void approve(Http.Session session, String email) {
+        String id = session.get(SESSION_KEY);
+        if (id == null) {
+            id = newId();
+            session.put(SESSION_KEY, id);
+        }
+        store.put(id, new PendingAuth(email, session.get("channel"), State.APPROVED), approvedTtl);
+    }
+
+    /**
+     * Mark the session as having failed the second factor.
+     */
+    public static void reject(Http.Session session, String email) {
+        String id = session.get(SESSION_KEY);
+        if (id != null) {
+            store.put(id, new PendingAuth(email, session.get("channel"), State.REJECTED), pendingTtl);
+        }
+    }
+
+    /**
+     * @param session the session of the user
+     * @param email   the local email of the user
+     * @return true if the session passed the second factor for this user
+     */
+    public static boolean isApproved(Http.Session session, String email) {
+        String id = session.get(SESSION_KEY);
+        if (id == null) {
+            return false;
+        }
+        PendingAuth auth = store.get(id);
+        return auth != null && auth.state == State.APPROVED && auth.email.equals(email);
+    }
+
+    /**
+     * Forget the state of the session, e.g. on logout.
+     */
+    public static void clear(Http.Session session) {
+        String id = session.get(SESSION_KEY);
+        if (id != null) {
+            store.remove(id);
+        }
+    }
+
+    private static String newId() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,40 @@
+package models.auth;
+
+/**
+ * Storage of the MFA state of logged-in sessions.
+ */
+public interface PendingAuthStore {
+
+    /**
+     * Store or replace the state of a session.
+     *
+     * @param id         session authentication id
+     * @param auth       the state
+     * @param ttlMillis  how long the state stays valid
+     * @return false if the state couldn't be stored, e.g. the store is full
+     */
+    boolean put(String id, PendingAuth auth, long ttlMillis);
+
+    /**
+     * @param id session authentication id
+     * @return the state, or null if unknown or expired
+     */
+    PendingAuth get(String id);
+
+    void remove(String id);
+
+    /**
+     * Drop expired states.
+     */
+    void sweep();
+
+    /**
+     * @return the number of states currently held, or -1 if unknown
+     */
+    int size();
+
+    /**
+     * @return true if the store blocks on a database, so it must be read off Play's dispatcher
+     */
+    boolean isBlocking();
+}
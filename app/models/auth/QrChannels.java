@@ -0,0 +1,93 @@
+package models.auth;
+
+import akka.actor.Cancellable;
+import models.utils.Metrics;
+import models.utils.TtlCache;
+import play.Configuration;
+import play.Play;
+import play.libs.Akka;
+import scala.concurrent.duration.Duration;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channels of the login QR codes, issued by the server.
+ * <p/>
+ * A channel is valid for mfa.qrcode.ttl and can be used once, by the browser it was issued to:
+ * the caller keeps it in that browser's session. A scan reporting any other channel is refused
+ * before Acceptto or the database are asked about it.
+ * <p/>
+ * Live channels are never evicted: once mfa.qrcode.maxChannels are waiting, new ones are
+ * refused until some expire or are used. Expired channels are dropped every mfa.qrcode.sweepInterval,
+ * so that they do not keep the registry full.
+ */
+public class QrChannels {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static TtlCache<String, Boolean> channels;
+    private static long ttlMillis;
+    private static Cancellable sweeper;
+
+    private static synchronized TtlCache<String, Boolean> channels() {
+        if (channels == null) {
+            Configuration conf = Play.application().configuration();
+            ttlMillis = conf.getMilliseconds("mfa.qrcode.ttl", 300000L);
+            channels = new TtlCache<String, Boolean>(conf.getInt("mfa.qrcode.maxChannels", 100000),
+                    ttlMillis, TimeUnit.MILLISECONDS);
+            Metrics.cache("qr_channels", channels);
+        }
+        return channels;
+    }
+
+    /**
+     * Schedule the removal of expired channels. Called when the application starts.
+     */
+    public static synchronized void start() {
+        long interval = Play.application().configuration().getMilliseconds("mfa.qrcode.sweepInterval", 60000L);
+        sweeper = Akka.system().scheduler().schedule(
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                Duration.create(interval, TimeUnit.MILLISECONDS),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        channels().removeExpired(Integer.MAX_VALUE);
+                    }
+                },
+                Akka.system().dispatcher());
+    }
+
+    public static synchronized void stop() {
+        if (sweeper != null) {
+            sweeper.cancel();
+            sweeper = null;
+        }
+    }
+
+    /**
+     * @return a new random channel, registered for mfa.qrcode.ttl, or null if too many are waiting
+     */
+    public static String issue() {
+        TtlCache<String, Boolean> issued = channels();
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        String channel = sb.toString();
+        return issued.offer(channel, Boolean.TRUE, ttlMillis, TimeUnit.MILLISECONDS) ? channel : null;
+    }
+
+    /**
+     * Use a channel. Only the first call for an issued, unexpired channel succeeds.
+     *
+     * @param channel the channel reported by the browser
+     * @param issued  the channel kept in the session of that browser when it was issued
+     * @return true if the channel was issued here, to this browser, and not used yet
+     */
+    public static boolean consume(String channel, String issued) {
+        return channel != null && channel.equals(issued) && channels().remove(channel) != null;
+    }
+}
@@ -0,0 +1,459 @@
+package models.imports;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Expr;
+import com.avaje.ebean.Transaction;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import models.LocalUser;
+import models.acceptto.MfaClient;
+import models.acceptto.UserValidity;
+import models.utils.Hash;
+import play.Configuration;
+import play.Logger;
+import play.Play;
+import play.libs.Akka;
+import play.libs.F;
+import scala.concurrent.ExecutionContext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bulk creation of users from a CSV or line-delimited JSON stream.
+ * <p/>
+ * The input is read line by line and handled in chunks of import.batchSize users:
+ * passwords are hashed in parallel on a dedicated pool while the Acceptto registrations
+ * are looked up, at most import.mfaConcurrency at a time, then the chunk is inserted in
+ * a single batched transaction. Users whose email or full name already exists are skipped,
+ * so an import can be run again on the same input, or resumed from the last committed line.
+ * <p/>
+ * CSV input has the columns email, fullname, password, or those named by a header line,
+ * which may also have a password_hash column with an existing bcrypt hash.
+ * JSON input has one object per line with the same fields.
+ */
+public class UserImport {
+
+    public enum Format {
+        CSV, JSON
+    }
+
+    /**
+     * Called after each committed chunk.
+     */
+    public interface Listener {
+        void onProgress(Progress progress);
+    }
+
+    /**
+     * Counters of an import. committedLine is the line to resume from.
+     */
+    public static class Progress {
+        public long committedLine;
+        public long created;
+        public long existing;
+        public long invalid;
+        public long failed;
+        public long mfaEnabled;
+        private final long startedAt = System.nanoTime();
+
+        public double usersPerSecond() {
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            return seconds > 0 ? created / seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("line=%d created=%d existing=%d invalid=%d failed=%d mfa=%d rate=%.0f/s",
+                    committedLine, created, existing, invalid, failed, mfaEnabled, usersPerSecond());
+        }
+    }
+
+    /**
+     * One input line.
+     */
+    public static class Record {
+        public String email;
+        public String fullname;
+        public String password;
+        public String password_hash;
+
+        // Set while the chunk is imported, not read from the input
+        long line;
+        Future<String> hash;
+        F.Promise<UserValidity> validity;
+        boolean mfaRegistered;
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final String[] DEFAULT_COLUMNS = {"email", "fullname", "password"};
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+
+    private final Format format;
+    private final int batchSize;
+    private final int hashThreads;
+    private final int mfaConcurrency;
+    private final long mfaTimeout;
+    private final boolean checkMfa;
+
+    public UserImport(Format format, int batchSize, int hashThreads, int mfaConcurrency, long mfaTimeout, boolean checkMfa) {
+        this.format = format;
+        this.batchSize = batchSize;
+        this.hashThreads = hashThreads;
+        this.mfaConcurrency = mfaConcurrency;
+        this.mfaTimeout = mfaTimeout;
+        this.checkMfa = checkMfa;
+    }
+
+    /**
+     * @param format the input format
+     * @return an import configured by import.*
+     */
+    public static UserImport fromConfig(Format format) {
+        Configuration conf = Play.application().configuration();
+        return new UserImport(format,
+                conf.getInt("import.batchSize", 500),
+                conf.getInt("import.hashThreads", Runtime.getRuntime().availableProcessors()),
+                conf.getInt("import.mfaConcurrency", 16),
+                conf.getMilliseconds("import.mfaTimeout", 10000L),
+                conf.getBoolean("import.checkMfa", true));
+    }
+
+    /**
+     * @return true while an import runs
+     */
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Take the right to run an import. Only one import runs at a time: the claim must be
+     * held during {@link #run} and given back with {@link #release}.
+     *
+     * @return false if another import holds it
+     */
+    public static boolean claim() {
+        return running.compareAndSet(false, true);
+    }
+
+    public static void release() {
+        running.set(false);
+    }
+
+    /**
+     * @return the contexts.import dispatcher, where the admin endpoint runs imports
+     */
+    public static ExecutionContext context() {
+        return Akka.system().dispatchers().lookup("contexts.import");
+    }
+
+    /**
+     * Import the users of a stream. The caller holds the {@link #claim}.
+     *
+     * @param input     the CSV or JSON lines
+     * @param skipLines lines already committed by a previous run
+     * @param listener  told of the progress after each chunk
+     * @return the final counters
+     * @throws IOException if the input can't be read
+     */
+    public Progress run(InputStream input, long skipLines, Listener listener) throws IOException {
+        if (!running.get()) {
+            throw new IllegalStateException("The import isn't claimed");
+        }
+        ExecutorService hashPool = Executors.newFixedThreadPool(hashThreads);
+        try {
+            Progress progress = new Progress();
+            progress.committedLine = skipLines;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            String[] columns = DEFAULT_COLUMNS;
+            List<Record> chunk = new ArrayList<Record>(batchSize);
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (format == Format.CSV && lineNumber == 1) {
+                    // A header line has a cell named exactly email; a first user email only starts with it
+                    String[] cells = parseCsv(line.trim().toLowerCase(Locale.ENGLISH));
+                    if (Arrays.asList(cells).contains("email")) {
+                        columns = cells;
+                        continue;
+                    }
+                }
+                if (lineNumber <= skipLines || line.trim().isEmpty()) {
+                    continue;
+                }
+                Record record = parse(line, columns);
+                if (record == null) {
+                    progress.invalid++;
+                    continue;
+                }
+                record.line = lineNumber;
+                chunk.add(record);
+                if (chunk.size() == batchSize) {
+                    importChunk(chunk, hashPool, progress);
+                    progress.committedLine = lineNumber;
+                    listener.onProgress(progress);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                importChunk(chunk, hashPool, progress);
+            }
+            progress.committedLine = Math.max(progress.committedLine, lineNumber);
+            listener.onProgress(progress);
+            return progress;
+        } finally {
+            hashPool.shutdownNow();
+        }
+    }
+
+    private Record parse(String line, String[] columns) {
+        Record record;
+        if (format == Format.JSON) {
+            try {
+                record = MAPPER.readValue(line, Record.class);
+            } catch (IOException e) {
+                return null;
+            }
+        } else {
+            record = new Record();
+            String[] values = parseCsv(line);
+            for (int i = 0; i < columns.length && i < values.length; i++) {
+                String value = values[i].isEmpty() ? null : values[i];
+                switch (columns[i]) {
+                    case "email":
+                        record.email = value;
+                        break;
+                    case "fullname":
+                        record.fullname = value;
+                        break;
+                    case "password":
+                        record.password = value;
+                        break;
+                    case "password_hash":
+                        record.password_hash = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        boolean hasPassword = record.password != null || Hash.costOf(record.password_hash) > 0;
+        if (isBlank(record.email) || isBlank(record.fullname) || !hasPassword) {
+            return null;
+        }
+        record.email = record.email.trim();
+        record.fullname = record.fullname.trim();
+        return record;
+    }
+
+    /**
+     * Split a CSV line, honouring double quotes.
+     */
+    static String[] parseCsv(String line) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString().trim());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString().trim());
+        return values.toArray(new String[values.size()]);
+    }
+
+    private void importChunk(List<Record> chunk, ExecutorService hashPool, Progress progress) {
+        List<Record> records = withoutExisting(chunk, progress);
+
+        // Hash on the pool and look up Acceptto at the same time
+        for (final Record record : records) {
+            if (record.password_hash == null) {
+                record.hash = hashPool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return Hash.createPassword(record.password);
+                    }
+                });
+            }
+        }
+        if (checkMfa) {
+            final Semaphore permits = new Semaphore(mfaConcurrency);
+            for (Record record : records) {
+                permits.acquireUninterruptibly();
+                record.validity = MfaClient.get().isUserValid(record.email);
+                record.validity.onRedeem(new F.Callback<UserValidity>() {
+                    @Override
+                    public void invoke(UserValidity validity) {
+                        permits.release();
+                    }
+                });
+                record.validity.onFailure(new F.Callback<Throwable>() {
+                    @Override
+                    public void invoke(Throwable throwable) {
+                        permits.release();
+                    }
+                });
+            }
+        }
+
+        List<Record> ready = new ArrayList<Record>(records.size());
+        for (Record record : records) {
+            if (record.hash != null) {
+                try {
+                    record.password_hash = record.hash.get();
+                } catch (Exception e) {
+                    Logger.warn("Import: cannot hash the password of line " + record.line, e);
+                    progress.failed++;
+                    continue;
+                }
+            }
+            record.mfaRegistered = isRegistered(record);
+            ready.add(record);
+        }
+
+        // Every Acceptto answer is in: the transactions below only insert
+        if (!insertBatch(ready, progress)) {
+            insertOneByOne(ready, progress);
+        }
+    }
+
+    /**
+     * Drop the records whose email or full name is already taken, in the database or earlier in the chunk.
+     */
+    private List<Record> withoutExisting(List<Record> chunk, Progress progress) {
+        Set<String> emails = new HashSet<String>();
+        Set<String> fullnames = new HashSet<String>();
+        for (Record record : chunk) {
+            emails.add(record.email);
+            fullnames.add(record.fullname);
+        }
+        Set<String> takenEmails = new HashSet<String>();
+        Set<String> takenFullnames = new HashSet<String>();
+        for (LocalUser user : LocalUser.find.select("email, fullname").where()
+                .or(Expr.in("email", emails), Expr.in("fullname", fullnames)).findList()) {
+            takenEmails.add(user.email);
+            takenFullnames.add(user.fullname);
+        }
+
+        List<Record> records = new ArrayList<Record>(chunk.size());
+        for (Record record : chunk) {
+            if (!takenEmails.add(record.email) || !takenFullnames.add(record.fullname)) {
+                progress.existing++;
+            } else {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private boolean insertBatch(List<Record> records, Progress progress) {
+        Transaction transaction = Ebean.beginTransaction();
+        try {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(batchSize);
+            int mfaEnabled = 0;
+            for (Record record : records) {
+                LocalUser user = toUser(record);
+                if (user.mfa_email != null) {
+                    mfaEnabled++;
+                }
+                user.save();
+            }
+            transaction.commit();
+            progress.created += records.size();
+            progress.mfaEnabled += mfaEnabled;
+            return true;
+        } catch (RuntimeException e) {
+            Logger.warn("Import: batch ending at line " + records.get(records.size() - 1).line
+                    + " failed, inserting its users one by one", e);
+            return false;
+        } finally {
+            Ebean.endTransaction();
+        }
+    }
+
+    private void insertOneByOne(List<Record> records, Progress progress) {
+        for (Record record : records) {
+            try {
+                LocalUser user = toUser(record);
+                user.save();
+                progress.created++;
+                if (user.mfa_email != null) {
+                    progress.mfaEnabled++;
+                }
+            } catch (RuntimeException e) {
+                Logger.warn("Import: cannot create the user of line " + record.line + ": " + e.getMessage());
+                progress.failed++;
+            }
+        }
+    }
+
+    private LocalUser toUser(Record record) {
+        LocalUser user = new LocalUser();
+        user.email = record.email;
+        user.fullname = record.fullname;
+        user.passwordHash = record.password_hash;
+        user.confirmationToken = UUID.randomUUID().toString();
+        user.dateCreation = new Date();
+        user.validated = true;
+        if (record.mfaRegistered) {
+            user.mfa_email = record.email;
+        }
+        return user;
+    }
+
+    /**
+     * Wait for the Acceptto answer of a record, outside of any transaction.
+     */
+    private boolean isRegistered(Record record) {
+        if (record.validity == null) {
+            return false;
+        }
+        try {
+            return record.validity.get(mfaTimeout).isRegistered();
+        } catch (Exception e) {
+            Logger.debug("Import: no Acceptto answer for line " + record.line + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean isBlank(String input) {
+        return input == null || input.trim().isEmpty();
+    }
+}
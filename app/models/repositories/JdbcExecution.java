@@ -0,0 +1,48 @@
+package models.repositories;
+
+import play.libs.Akka;
+import play.libs.F;
+import scala.concurrent.ExecutionContext;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Runs blocking database calls on the contexts.jdbc dispatcher, sized to the connection pool,
+ * so they never hold a thread of Play's default dispatcher.
+ */
+public class JdbcExecution {
+
+    private static volatile ExecutionContext context;
+
+    /**
+     * @return the JDBC execution context, looked up on first use
+     */
+    public static ExecutionContext context() {
+        ExecutionContext current = context;
+        if (current == null) {
+            current = Akka.system().dispatchers().lookup("contexts.jdbc");
+            context = current;
+        }
+        return current;
+    }
+
+    /**
+     * Forget the context, whose actor system is going away. Called when the application stops.
+     */
+    public static void reset() {
+        context = null;
+    }
+
+    /**
+     * @param call the blocking database call
+     * @return a promise of its result, computed on the JDBC execution context
+     */
+    public static <T> F.Promise<T> run(final Callable<T> call) {
+        return F.Promise.promise(new F.Function0<T>() {
+            @Override
+            public T apply() throws Throwable {
+                return call.call();
+            }
+        }, context());
+    }
+}
@@ -0,0 +1,142 @@
+package models.repositories;
+
+import models.LocalUser;
+import models.UserFilter;
+import models.UserPrincipal;
+import play.libs.F;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Asynchronous access to {@link LocalUser}, on the JDBC execution context.
+ * Controllers compose these promises instead of calling the finders from a callback.
+ */
+public class LocalUserRepository {
+
+    public static F.Promise<LocalUser> findByEmail(final String email) {
+        return JdbcExecution.run(new Callable<LocalUser>() {
+            @Override
+            public LocalUser call() {
+                return LocalUser.findByEmail(email);
+            }
+        });
+    }
+
+    /**
+     * @return the principal, at once if it is cached, otherwise looked up on the JDBC execution context
+     */
+    public static F.Promise<UserPrincipal> findPrincipalByEmail(final String email) {
+        if (email == null) {
+            return F.Promise.<UserPrincipal>pure(null);
+        }
+        UserPrincipal cached = LocalUser.cachedPrincipal(email);
+        if (cached != null) {
+            return F.Promise.pure(cached);
+        }
+        return JdbcExecution.run(new Callable<UserPrincipal>() {
+            @Override
+            public UserPrincipal call() {
+                return LocalUser.loadPrincipalByEmail(email);
+            }
+        });
+    }
+
+    public static F.Promise<UserPrincipal> findPrincipalByMfaEmail(final String mfaEmail) {
+        return JdbcExecution.run(new Callable<UserPrincipal>() {
+            @Override
+            public UserPrincipal call() {
+                return LocalUser.findPrincipalByMfaEmail(mfaEmail);
+            }
+        });
+    }
+
+    public static F.Promise<LocalUser> findCredentialsByEmail(final String email) {
+        return JdbcExecution.run(new Callable<LocalUser>() {
+            @Override
+            public LocalUser call() {
+                return LocalUser.findCredentialsByEmail(email);
+            }
+        });
+    }
+
+    public static F.Promise<LocalUser> findByConfirmationToken(final String token) {
+        return JdbcExecution.run(new Callable<LocalUser>() {
+            @Override
+            public LocalUser call() {
+                return LocalUser.findByConfirmationToken(token);
+            }
+        });
+    }
+
+    public static F.Promise<List<LocalUser>> findPage(final long afterId, final int limit, final UserFilter filter) {
+        return JdbcExecution.run(new Callable<List<LocalUser>>() {
+            @Override
+            public List<LocalUser> call() {
+                return LocalUser.findPage(afterId, limit, filter);
+            }
+        });
+    }
+
+    /**
+     * @param user the user to insert
+     * @return a promise of the saved user
+     */
+    public static F.Promise<LocalUser> save(final LocalUser user) {
+        return JdbcExecution.run(new Callable<LocalUser>() {
+            @Override
+            public LocalUser call() {
+                user.save();
+                return user;
+            }
+        });
+    }
+
+    /**
+     * @return a promise of true if the user was confirmed, false if there is no user
+     */
+    public static F.Promise<Boolean> confirm(final LocalUser user) {
+        return JdbcExecution.run(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return LocalUser.confirm(user);
+            }
+        });
+    }
+
+    /**
+     * Set the Acceptto email of a user.
+     *
+     * @param email    the local email of the user
+     * @param mfaEmail the Acceptto email
+     * @return a promise of true if the user exists
+     */
+    public static F.Promise<Boolean> setMfaEmail(final String email, final String mfaEmail) {
+        return JdbcExecution.run(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                LocalUser user = LocalUser.findByEmail(email);
+                if (user == null) {
+                    return false;
+                }
+                user.mfa_email = mfaEmail;
+                user.save();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Replace a password hash, unless the password changed since oldHash was read.
+     *
+     * @return a promise of true if the hash was replaced
+     */
+    public static F.Promise<Boolean> updatePasswordHash(final Long id, final String oldHash, final String newHash) {
+        return JdbcExecution.run(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return LocalUser.updatePasswordHash(id, oldHash, newHash);
+            }
+        });
+    }
+}
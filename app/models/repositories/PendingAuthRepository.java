@@ -0,0 +1,29 @@
+package models.repositories;
+
+import models.auth.PendingAuth;
+import play.libs.F;
+import play.mvc.Http;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Asynchronous reads of {@link PendingAuth}, on the JDBC execution context when the store is
+ * the pending_auth table, and on the spot when it is in memory.
+ */
+public class PendingAuthRepository {
+
+    /**
+     * @see PendingAuth#isApproved
+     */
+    public static F.Promise<Boolean> isApproved(final Http.Session session, final String email) {
+        if (!PendingAuth.store().isBlocking()) {
+            return F.Promise.pure(PendingAuth.isApproved(session, email));
+        }
+        return JdbcExecution.run(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return PendingAuth.isApproved(session, email);
+            }
+        });
+    }
+}
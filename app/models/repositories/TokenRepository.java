@@ -0,0 +1,50 @@
+package models.repositories;
+
+import models.Token;
+import play.libs.F;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Asynchronous access to {@link Token}, on the JDBC execution context.
+ * <p/>
+ * Code running on Play's dispatcher or on a scheduler, such as {@link models.TokenPurger},
+ * reads and writes tokens through this class rather than the blocking {@link Token} queries.
+ */
+public class TokenRepository {
+
+    public static F.Promise<Token> findByTokenAndType(final String token, final Token.TypeToken type) {
+        return JdbcExecution.run(new Callable<Token>() {
+            @Override
+            public Token call() {
+                return Token.findByTokenAndType(token, type);
+            }
+        });
+    }
+
+    /**
+     * @param token the token to save
+     * @return a promise of the saved token
+     */
+    public static F.Promise<Token> save(final Token token) {
+        return JdbcExecution.run(new Callable<Token>() {
+            @Override
+            public Token call() {
+                token.save();
+                return token;
+            }
+        });
+    }
+
+    /**
+     * @return a promise of the number of tokens deleted
+     */
+    public static F.Promise<Integer> deleteCreatedBefore(final long before, final int batchSize) {
+        return JdbcExecution.run(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return Token.deleteCreatedBefore(before, batchSize);
+            }
+        });
+    }
+}
@@ -0,0 +1,124 @@
+package models.utils;
+
+import play.libs.F;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size thread pool with a bounded queue, for work that must stay off Play's dispatcher.
+ * <p/>
+ * When the queue is full, submissions fail immediately with an {@link OverloadedException}
+ * instead of queueing without limit.
+ */
+public class BoundedExecutor {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final int retryAfterSeconds;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param name              name used for the threads
+     * @param threads           number of worker threads
+     * @param queueCapacity     maximum number of tasks waiting for a thread
+     * @param retryAfterSeconds hint given to clients when a task is rejected
+     */
+    public BoundedExecutor(final String name, int threads, int queueCapacity, int retryAfterSeconds) {
+        this.name = name;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Run a task on the pool.
+     *
+     * @param task the task
+     * @return a promise of the task result, failed with {@link OverloadedException} if the queue is full
+     */
+    public <T> F.Promise<T> submit(final Callable<T> task) {
+        final F.RedeemablePromise<T> promise = F.RedeemablePromise.empty();
+        final long enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recordWait(System.nanoTime() - enqueuedAt);
+                    try {
+                        promise.success(task.call());
+                    } catch (Throwable t) {
+                        promise.failure(t);
+                    }
+                }
+            });
+            submitted.increment();
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return F.Promise.throwing(new OverloadedException(name + " pool is saturated", retryAfterSeconds));
+        }
+        return promise;
+    }
+
+    private void recordWait(long nanos) {
+        totalWaitNanos.add(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int activeCount() {
+        return executor.getActiveCount();
+    }
+
+    public long submitted() {
+        return submitted.sum();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public long totalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    public long maxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,185 @@
+package models.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker over the outcomes of the last calls to a dependency.
+ * <p/>
+ * CLOSED: calls go through, and the last windowSize outcomes are kept. Once at least
+ * minimumCalls are known, the breaker opens if the share of failures or of slow calls
+ * reaches its threshold.
+ * OPEN: calls are refused until openDuration has passed.
+ * HALF_OPEN: up to probes calls go through; the breaker closes if they all succeed
+ * quickly and opens again on the first failure or slow call.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    /**
+     * Notified when the breaker changes state.
+     */
+    public interface Listener {
+        void onStateChange(CircuitBreaker breaker, State from, State to);
+    }
+
+    private final String name;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int probes;
+    private final Listener listener;
+
+    // -- Ring of the last outcomes: bit 0 failure, bit 1 slow
+    private final byte[] outcomes;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    /**
+     * @param name                  name of the dependency, e.g. an endpoint
+     * @param windowSize            number of last calls considered
+     * @param minimumCalls          calls needed before the rates are considered
+     * @param failureRateThreshold  share of failures that opens the breaker, e.g. 0.5
+     * @param slowCallRateThreshold share of slow calls that opens the breaker, e.g. 0.5
+     * @param slowCallMillis        duration above which a call is slow
+     * @param openMillis            time the breaker stays open before probing
+     * @param probes                calls let through while half-open
+     * @param listener              told of state changes
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold,
+                          double slowCallRateThreshold, long slowCallMillis, long openMillis, int probes,
+                          Listener listener) {
+        if (windowSize <= 0 || probes <= 0) {
+            throw new IllegalArgumentException("windowSize and probes must be positive");
+        }
+        this.name = name;
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(Math.max(1, minimumCalls), windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.probes = probes;
+        this.listener = listener;
+        this.outcomes = new byte[windowSize];
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Ask to make a call. A caller given permission must report the outcome with {@link #record}.
+     *
+     * @return true if the call may go through
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                transition(State.HALF_OPEN);
+                probesStarted = 0;
+                probesSucceeded = 0;
+                // fall through: this call is the first probe
+            default:
+                if (probesStarted >= probes) {
+                    return false;
+                }
+                probesStarted++;
+                return true;
+        }
+    }
+
+    /**
+     * Report the outcome of a call allowed by {@link #tryAcquire}.
+     *
+     * @param durationNanos duration of the call
+     * @param success       false if the call failed
+     */
+    public synchronized void record(long durationNanos, boolean success) {
+        boolean slow = durationNanos > slowCallNanos;
+        switch (state) {
+            case HALF_OPEN:
+                if (!success || slow) {
+                    open();
+                } else if (++probesSucceeded >= probes) {
+                    reset();
+                    transition(State.CLOSED);
+                }
+                return;
+            case OPEN:
+                // a call started before the breaker opened
+                return;
+            default:
+                byte outcome = (byte) ((success ? 0 : 1) | (slow ? 2 : 0));
+                if (recorded == windowSize) {
+                    byte evicted = outcomes[next];
+                    failures -= evicted & 1;
+                    slowCalls -= (evicted >> 1) & 1;
+                } else {
+                    recorded++;
+                }
+                outcomes[next] = outcome;
+                next = (next + 1) % windowSize;
+                failures += outcome & 1;
+                slowCalls += (outcome >> 1) & 1;
+
+                if (recorded >= minimumCalls
+                        && (failures >= failureRateThreshold * recorded || slowCalls >= slowCallRateThreshold * recorded)) {
+                    open();
+                }
+        }
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * @return seconds until an open breaker lets a probe through, at least 1
+     */
+    public synchronized int retryAfterSeconds() {
+        long remaining = openNanos - (System.nanoTime() - openedAt);
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        reset();
+        transition(State.OPEN);
+    }
+
+    private void reset() {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    private void transition(State to) {
+        State from = state;
+        state = to;
+        if (listener != null && from != to) {
+            listener.onStateChange(this, from, to);
+        }
+    }
+}
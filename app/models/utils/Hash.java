@@ -1,8 +1,14 @@
 package models.utils;
 
 import org.mindrot.jbcrypt.BCrypt;
+import play.Configuration;
+import play.Logger;
+import play.Play;
+import play.libs.F;
 
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Password utility class.  This handles password encryption and validation.
@@ -12,6 +18,138 @@ import java.util.UUID;
  */
 public class Hash {
 
+    private static final Histogram CREATE = Metrics.histogram("bcrypt_duration_seconds",
+            "Time spent hashing or verifying a password", "operation=\"create\"");
+    private static final Histogram CHECK = Metrics.histogram("bcrypt_duration_seconds",
+            "Time spent hashing or verifying a password", "operation=\"check\"");
+
+    /**
+     * Cost used for new hashes, set by {@link #start()}.
+     */
+    private static volatile int logRounds = 10;
+
+    /**
+     * Dedicated pool for bcrypt, created on first asynchronous use and shut down by {@link #stop()}.
+     */
+    private static volatile BoundedExecutor pool;
+
+    /**
+     * @return the bcrypt pool, for its queue depth and wait time metrics
+     */
+    public static BoundedExecutor pool() {
+        BoundedExecutor current = pool;
+        if (current == null) {
+            synchronized (Hash.class) {
+                current = pool;
+                if (current == null) {
+                    Configuration conf = Play.application().configuration();
+                    current = new BoundedExecutor("bcrypt",
+                            conf.getInt("hash.pool.threads", Runtime.getRuntime().availableProcessors()),
+                            conf.getInt("hash.pool.queueSize", 64),
+                            conf.getInt("hash.pool.retryAfter", 1));
+                    Metrics.pool(current);
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Shut the bcrypt pool down, letting queued hashes finish. Called when the application stops.
+     */
+    public static synchronized void stop() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Choose the bcrypt cost used for new hashes, from hash.bcrypt.*. Called when the application starts.
+     * <p/>
+     * With hash.bcrypt.cost set, that cost is used as is. Otherwise the highest cost whose
+     * hashing time stays under hash.bcrypt.target is measured on this machine, bounded by
+     * hash.bcrypt.minCost and hash.bcrypt.maxCost.
+     */
+    public static void start() {
+        Configuration conf = Play.application().configuration();
+        Integer fixed = conf.getInt("hash.bcrypt.cost");
+        if (fixed != null) {
+            logRounds = fixed;
+        } else {
+            logRounds = calibrate(conf.getMilliseconds("hash.bcrypt.target", 50L),
+                    conf.getInt("hash.bcrypt.minCost", 10),
+                    conf.getInt("hash.bcrypt.maxCost", 16));
+        }
+        Logger.info("bcrypt cost set to " + logRounds);
+    }
+
+    /**
+     * Find the highest cost whose hashing time stays under the target.
+     * Each extra round doubles the time, so this stops at the first cost over the target.
+     *
+     * @param targetMillis target hashing time
+     * @param minCost      lowest cost returned, even if slower than the target
+     * @param maxCost      highest cost returned
+     * @return the cost to use
+     */
+    public static int calibrate(long targetMillis, int minCost, int maxCost) {
+        long targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        // warm up the JIT so the first measure isn't inflated
+        BCrypt.hashpw("calibration", BCrypt.gensalt(4));
+        BCrypt.hashpw("calibration", BCrypt.gensalt(4));
+
+        int cost = minCost;
+        while (cost < maxCost && time(cost + 1) <= targetNanos) {
+            cost++;
+        }
+        return cost;
+    }
+
+    private static long time(int cost) {
+        String salt = BCrypt.gensalt(cost);
+        long start = System.nanoTime();
+        BCrypt.hashpw("calibration", salt);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the bcrypt cost used for new hashes
+     */
+    public static int logRounds() {
+        return logRounds;
+    }
+
+    /**
+     * @param encryptedPassword a bcrypt hash, e.g. $2a$10$...
+     * @return the cost of the hash, or -1 if it isn't a bcrypt hash
+     */
+    public static int costOf(String encryptedPassword) {
+        if (encryptedPassword == null || encryptedPassword.length() < 7 || encryptedPassword.charAt(0) != '$') {
+            return -1;
+        }
+        int end = encryptedPassword.indexOf('$', 1);
+        if (end < 0 || encryptedPassword.length() < end + 3) {
+            return -1;
+        }
+        char tens = encryptedPassword.charAt(end + 1);
+        char units = encryptedPassword.charAt(end + 2);
+        if (!Character.isDigit(tens) || !Character.isDigit(units)) {
+            return -1;
+        }
+        return (tens - '0') * 10 + (units - '0');
+    }
+
+    /**
+     * @param encryptedPassword a stored bcrypt hash
+     * @return true if the hash was made with a lower cost than the current one
+     */
+    public static boolean needsRehash(String encryptedPassword) {
+        // Only upgrades: a lower calibration on a loaded or slower node never weakens stored hashes
+        return costOf(encryptedPassword) < logRounds;
+    }
+
     /**
      * Create an encrypted password from a clear string.
      *
@@ -23,7 +161,32 @@ public class Hash {
         if (clearString == null) {
             throw new AppException("No password defined!");
         }
-        return BCrypt.hashpw(clearString, BCrypt.gensalt());
+        long start = System.nanoTime();
+        try {
+            return BCrypt.hashpw(clearString, BCrypt.gensalt(logRounds));
+        } finally {
+            CREATE.recordSince(start);
+        }
+    }
+
+    /**
+     * Create an encrypted password with a given bcrypt cost.
+     *
+     * @param clearString the clear string
+     * @param logRounds   the log2 of the number of hashing rounds
+     * @return an encrypted password of the clear string
+     * @throws AppException APP Exception, if no password is given
+     */
+    public static String createPassword(String clearString, int logRounds) throws AppException {
+        if (clearString == null) {
+            throw new AppException("No password defined!");
+        }
+        long start = System.nanoTime();
+        try {
+            return BCrypt.hashpw(clearString, BCrypt.gensalt(logRounds));
+        } finally {
+            CREATE.recordSince(start);
+        }
     }
 
     /**
@@ -38,6 +201,42 @@ public class Hash {
         if (encryptedPassword == null) {
             return false;
         }
-        return BCrypt.checkpw(candidate, encryptedPassword);
+        long start = System.nanoTime();
+        try {
+            return BCrypt.checkpw(candidate, encryptedPassword);
+        } finally {
+            CHECK.recordSince(start);
+        }
+    }
+
+    /**
+     * Same as {@link #createPassword(String)}, but runs on the bcrypt pool.
+     *
+     * @param clearString the clear string
+     * @return a promise of the encrypted password, failed with {@link OverloadedException} if the pool is full
+     */
+    public static F.Promise<String> createPasswordAsync(final String clearString) {
+        return pool().submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return createPassword(clearString);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #checkPassword(String, String)}, but runs on the bcrypt pool.
+     *
+     * @param candidate         the clear text
+     * @param encryptedPassword the encrypted password string to check.
+     * @return a promise of the check, failed with {@link OverloadedException} if the pool is full
+     */
+    public static F.Promise<Boolean> checkPasswordAsync(final String candidate, final String encryptedPassword) {
+        return pool().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return checkPassword(candidate, encryptedPassword);
+            }
+        });
     }
 }
@@ -0,0 +1,81 @@
+package models.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed, roughly logarithmic buckets from 0.1ms to 30s.
+ * <p/>
+ * Recording is lock-free and allocation-free: a binary search over the bucket bounds
+ * and two atomic additions.
+ */
+public class Histogram {
+
+    /**
+     * Upper bounds of the buckets, in seconds.
+     */
+    static final double[] BOUNDS = {
+            0.0001, 0.00025, 0.0005,
+            0.001, 0.0025, 0.005,
+            0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5,
+            1, 2.5, 5,
+            10, 30
+    };
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+        }
+    }
+
+    // One slot per bound, plus one for values above the last bound
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * @param nanos a duration, typically System.nanoTime() minus a start time
+     */
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucketOf(nanos));
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Record the time elapsed since a System.nanoTime() reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketOf(long nanos) {
+        int low = 0;
+        int high = BOUNDS_NANOS.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (BOUNDS_NANOS[mid] < nanos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the non-cumulative count of each bucket; the last one counts values above 30s
+     */
+    public long[] bucketCounts() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    public double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+}
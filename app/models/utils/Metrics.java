@@ -0,0 +1,214 @@
+package models.utils;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of the application metrics, rendered in the Prometheus text format.
+ * <p/>
+ * Metrics are created once, typically in static fields, and recorded into directly,
+ * so the request path never looks anything up in this registry.
+ */
+public class Metrics {
+
+    /**
+     * A value read when the metrics are scraped.
+     */
+    public interface Gauge {
+        double value();
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> children = new LinkedHashMap<String, Object>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+    private static final String[] BOUND_LABELS = new String[Histogram.BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUND_LABELS.length; i++) {
+            BOUND_LABELS[i] = BigDecimal.valueOf(Histogram.BOUNDS[i]).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    /**
+     * @param name   metric name, e.g. mfa_check_outcomes_total
+     * @param help   description
+     * @param labels Prometheus labels without braces, e.g. outcome="approved", or "" for none
+     */
+    public static Counter counter(String name, String help, String labels) {
+        Counter counter = new Counter();
+        register(name, help, "counter", labels, counter);
+        return counter;
+    }
+
+    /**
+     * @param name   metric name, e.g. bcrypt_duration_seconds
+     * @param help   description
+     * @param labels Prometheus labels without braces, or "" for none
+     */
+    public static Histogram histogram(String name, String help, String labels) {
+        Histogram histogram = new Histogram();
+        register(name, help, "histogram", labels, histogram);
+        return histogram;
+    }
+
+    /**
+     * Expose a value that only goes up, owned by another object, e.g. cache hits.
+     */
+    public static void counterFunction(String name, String help, String labels, Gauge value) {
+        register(name, help, "counter", labels, value);
+    }
+
+    /**
+     * Expose a value that goes up and down, e.g. a queue depth.
+     */
+    public static void gauge(String name, String help, String labels, Gauge value) {
+        register(name, help, "gauge", labels, value);
+    }
+
+    /**
+     * Expose the counters of a cache under cache_*{cache="name"}.
+     */
+    public static void cache(String cacheName, final TtlCache<?, ?> cache) {
+        String labels = "cache=\"" + cacheName + "\"";
+        counterFunction("cache_hits_total", "Cache hits", labels, new Gauge() {
+            @Override
+            public double value() {
+                return cache.hits();
+            }
+        });
+        counterFunction("cache_misses_total", "Cache misses", labels, new Gauge() {
+            @Override
+            public double value() {
+                return cache.misses();
+            }
+        });
+        counterFunction("cache_evictions_total", "Entries evicted to stay under the size bound", labels, new Gauge() {
+            @Override
+            public double value() {
+                return cache.evictions();
+            }
+        });
+        gauge("cache_size", "Entries in the cache", labels, new Gauge() {
+            @Override
+            public double value() {
+                return cache.size();
+            }
+        });
+    }
+
+    /**
+     * Expose the state of a bounded pool under pool_*{pool="name"}.
+     */
+    public static void pool(final BoundedExecutor pool) {
+        String labels = "pool=\"" + pool.name() + "\"";
+        gauge("pool_queue_depth", "Tasks waiting for a thread", labels, new Gauge() {
+            @Override
+            public double value() {
+                return pool.queueDepth();
+            }
+        });
+        gauge("pool_active_threads", "Threads running a task", labels, new Gauge() {
+            @Override
+            public double value() {
+                return pool.activeCount();
+            }
+        });
+        counterFunction("pool_tasks_total", "Tasks accepted", labels, new Gauge() {
+            @Override
+            public double value() {
+                return pool.submitted();
+            }
+        });
+        counterFunction("pool_rejected_total", "Tasks rejected because the queue was full", labels, new Gauge() {
+            @Override
+            public double value() {
+                return pool.rejected();
+            }
+        });
+        counterFunction("pool_wait_seconds_total", "Time tasks spent in the queue", labels, new Gauge() {
+            @Override
+            public double value() {
+                return pool.totalWaitNanos() / 1e9;
+            }
+        });
+        gauge("pool_max_wait_seconds", "Longest time a task spent in the queue", labels, new Gauge() {
+            @Override
+            public double value() {
+                return pool.maxWaitNanos() / 1e9;
+            }
+        });
+    }
+
+    private static synchronized void register(String name, String help, String type, String labels, Object metric) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, help, type);
+            families.put(name, family);
+        }
+        family.children.put(labels, metric);
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    public static synchronized String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> child : family.children.entrySet()) {
+                String labels = child.getKey();
+                Object metric = child.getValue();
+                if (metric instanceof Histogram) {
+                    writeHistogram(out, family.name, labels, (Histogram) metric);
+                } else if (metric instanceof Counter) {
+                    writeSample(out, family.name, labels, ((Counter) metric).get());
+                } else {
+                    writeSample(out, family.name, labels, ((Gauge) metric).value());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        long[] counts = histogram.bucketCounts();
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+            cumulative += counts[i];
+            writeSample(out, name + "_bucket", prefix + "le=\"" + BOUND_LABELS[i] + "\"", cumulative);
+        }
+        cumulative += counts[counts.length - 1];
+        writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        writeSample(out, name + "_sum", labels, histogram.sumSeconds());
+        writeSample(out, name + "_count", labels, cumulative);
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,19 @@
+package models.utils;
+
+/**
+ * Thrown when work is refused because a bounded resource is saturated.
+ * Controllers answer it with a 503 and a Retry-After header.
+ */
+public class OverloadedException extends AppException {
+
+    private final int retryAfterSeconds;
+
+    public OverloadedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
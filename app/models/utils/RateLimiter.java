@@ -0,0 +1,115 @@
+package models.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter keyed by a string, e.g. an email or an IP address.
+ * <p/>
+ * Each key holds a single long, the time at which its bucket will be full again
+ * (the generic cell rate algorithm), updated with a compare-and-set: no lock is
+ * taken, and the map itself is striped by ConcurrentHashMap.
+ * A key whose bucket is full again carries no state, so it can be dropped at any
+ * time: idle keys are swept when the map reaches its size bound. A key still being
+ * throttled is never dropped; when no room can be made, new keys are refused, so
+ * churning through keys can't reset a limit.
+ */
+public class RateLimiter {
+
+    private static final int EVICTION_SAMPLE = 64;
+
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int maxKeys;
+    private final AtomicLong lastFullSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param burst   number of attempts allowed at once for a key
+     * @param period  time for a key to get one attempt back
+     * @param unit    unit of the period
+     * @param maxKeys maximum number of keys tracked
+     */
+    public RateLimiter(int burst, long period, TimeUnit unit, int maxKeys) {
+        if (burst <= 0 || period <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("burst, period and maxKeys must be positive");
+        }
+        this.intervalNanos = unit.toNanos(period);
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Take one attempt from the bucket of a key.
+     *
+     * @param key the key, e.g. a client IP
+     * @return 0 if the attempt is allowed, otherwise the nanoseconds to wait before the next one;
+     * a new key is refused for one period while the map is full of throttled keys
+     */
+    public long acquire(String key) {
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys && !sweep(now)) {
+                return intervalNanos;
+            }
+            AtomicLong created = new AtomicLong(now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+
+        while (true) {
+            long fullAt = bucket.get();
+            long start = fullAt - now > 0 ? fullAt : now;
+            long next = start + intervalNanos;
+            long wait = next - now - intervalNanos - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys tracked
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Drop the keys whose bucket is full again, looking at a sample of the map, and at the
+     * whole map at most once per period if the sample has none.
+     *
+     * @return true if there is room for a new key
+     */
+    private boolean sweep(long now) {
+        if (removeIdle(now, EVICTION_SAMPLE) == 0) {
+            long last = lastFullSweep.get();
+            if (now - last >= intervalNanos && lastFullSweep.compareAndSet(last, now)) {
+                removeIdle(now, Integer.MAX_VALUE);
+            }
+        }
+        return buckets.size() < maxKeys;
+    }
+
+    private int removeIdle(long now, int max) {
+        int seen = 0;
+        int removed = 0;
+        Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator();
+        while (it.hasNext() && seen++ < max) {
+            Map.Entry<String, AtomicLong> entry = it.next();
+            if (entry.getValue().get() - now <= 0 && buckets.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
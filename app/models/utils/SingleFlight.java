@@ -0,0 +1,82 @@
+package models.utils;
+
+import play.libs.F;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent asynchronous calls for the same key into one.
+ * <p/>
+ * While a call for a key is in flight, later callers get the same promise instead of
+ * starting another call. Nothing is remembered once the call completes.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * Starts the actual call.
+     */
+    public interface Call<V> {
+        F.Promise<V> start() throws Throwable;
+    }
+
+    private final ConcurrentHashMap<K, F.Promise<V>> inFlight = new ConcurrentHashMap<K, F.Promise<V>>();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * @param key  key identifying identical calls
+     * @param call starts the call if none is in flight for this key
+     * @return the promise of the in-flight call
+     */
+    public F.Promise<V> execute(final K key, Call<V> call) {
+        final F.RedeemablePromise<V> promise = F.RedeemablePromise.empty();
+        F.Promise<V> existing = inFlight.putIfAbsent(key, promise);
+        if (existing != null) {
+            shared.increment();
+            return existing;
+        }
+        calls.increment();
+
+        F.Promise<V> started;
+        try {
+            started = call.start();
+        } catch (Throwable t) {
+            started = F.Promise.throwing(t);
+        }
+        started.onRedeem(new F.Callback<V>() {
+            @Override
+            public void invoke(V value) {
+                inFlight.remove(key, promise);
+                promise.success(value);
+            }
+        });
+        started.onFailure(new F.Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable throwable) {
+                inFlight.remove(key, promise);
+                promise.failure(throwable);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * @return the number of calls actually started
+     */
+    public long calls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of callers that joined a call already in flight
+     */
+    public long shared() {
+        return shared.sum();
+    }
+
+    public int inFlight() {
+        return inFlight.size();
+    }
+}
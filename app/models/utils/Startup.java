@@ -0,0 +1,127 @@
+package models.utils;
+
+import play.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the phases of the application start and logs where the time went.
+ * <p/>
+ * Phases run one after the other with {@link #run}, or together on their own threads with
+ * {@link #parallel}. The duration of each phase is also exported as startup_phase_seconds.
+ */
+public class Startup {
+
+    private final long start = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    /**
+     * Run a phase on the calling thread.
+     *
+     * @param phase name of the phase in the report
+     * @param task  the phase
+     */
+    public void run(String phase, Runnable task) {
+        long begin = System.nanoTime();
+        task.run();
+        record(phase, System.nanoTime() - begin);
+    }
+
+    /**
+     * Run phases together, one thread each, and wait for all of them.
+     *
+     * @param tasks the phases, by name
+     * @throws RuntimeException the failure of the first failed phase, once all have ended
+     */
+    public void parallel(Map<String, Runnable> tasks) {
+        ExecutorService threads = Executors.newFixedThreadPool(tasks.size(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "startup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<String> names = new ArrayList<String>(tasks.keySet());
+            List<Future<Long>> durations = new ArrayList<Future<Long>>();
+            for (final Runnable task : tasks.values()) {
+                durations.add(threads.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        long begin = System.nanoTime();
+                        task.run();
+                        return System.nanoTime() - begin;
+                    }
+                }));
+            }
+
+            RuntimeException failure = null;
+            for (int i = 0; i < names.size(); i++) {
+                try {
+                    record(names.get(i), durations.get(i).get());
+                } catch (ExecutionException e) {
+                    Logger.error("Startup phase " + names.get(i) + " failed", e.getCause());
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause()
+                                : new IllegalStateException("Startup phase " + names.get(i) + " failed", e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted during startup", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Log the duration of each phase, of the whole start and the time since the JVM started.
+     */
+    public void report() {
+        long total = System.nanoTime() - start;
+        StringBuilder sb = new StringBuilder("Started in ").append(millis(total)).append(" ms (");
+        String separator = "";
+        synchronized (phases) {
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                sb.append(separator).append(phase.getKey()).append(' ').append(millis(phase.getValue())).append(" ms");
+                separator = ", ";
+            }
+        }
+        sb.append("), ").append(ManagementFactory.getRuntimeMXBean().getUptime()).append(" ms after JVM start");
+        Logger.info(sb.toString());
+    }
+
+    private void record(String phase, final long nanos) {
+        synchronized (phases) {
+            phases.put(phase, nanos);
+        }
+        Metrics.gauge("startup_phase_seconds", "Duration of each phase of the application start",
+                "phase=\"" + phase + "\"", new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return nanos / 1e9;
+                    }
+                });
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
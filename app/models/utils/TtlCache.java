@@ -0,0 +1,226 @@
+package models.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small bounded in-memory cache with per-entry time-to-live.
+ * <p/>
+ * Expired entries are dropped lazily on read and swept when the cache is full.
+ * When no expired entry is found in the sample, an arbitrary live entry is
+ * evicted to stay under the size bound.
+ */
+public class TtlCache<K, V> {
+
+    private static final int EVICTION_SAMPLE = 32;
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize maximum number of entries kept
+     * @param ttl     default time-to-live of an entry
+     * @param unit    unit of the ttl
+     */
+    public TtlCache(int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * @param key key to look up
+     * @return the cached value, or null if absent or expired
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            if (!entry.isExpired(System.nanoTime())) {
+                hits.increment();
+                return entry.value;
+            }
+            entries.remove(key, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store a value with the default time-to-live.
+     */
+    public void put(K key, V value) {
+        put(key, value, ttlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Store a value with a specific time-to-live.
+     */
+    public void put(K key, V value, long ttl, TimeUnit unit) {
+        if (key == null || value == null) {
+            return;
+        }
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            makeRoom();
+        }
+        entries.put(key, new Entry<V>(value, System.nanoTime() + unit.toNanos(ttl)));
+    }
+
+    /**
+     * Store a value with the default time-to-live, unless the key already has a live value.
+     *
+     * @return the live value already stored, or null if this value was stored
+     */
+    public V putIfAbsent(K key, V value) {
+        long now = System.nanoTime();
+        Entry<V> created = new Entry<V>(value, now + ttlNanos);
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            makeRoom();
+        }
+        while (true) {
+            Entry<V> existing = entries.putIfAbsent(key, created);
+            if (existing == null) {
+                return null;
+            }
+            if (!existing.isExpired(now)) {
+                return existing.value;
+            }
+            if (entries.replace(key, existing, created)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Store a value only if there is room once expired entries are dropped. Unlike {@link #put},
+     * a live entry is never evicted: when the cache is full of them, the value is refused.
+     *
+     * @return true if the value was stored
+     */
+    public boolean offer(K key, V value, long ttl, TimeUnit unit) {
+        if (key == null || value == null) {
+            return false;
+        }
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            removeExpired(EVICTION_SAMPLE);
+            if (entries.size() >= maxSize) {
+                return false;
+            }
+        }
+        entries.put(key, new Entry<V>(value, System.nanoTime() + unit.toNanos(ttl)));
+        return true;
+    }
+
+    /**
+     * Drop the expired entries among the first max entries.
+     *
+     * @param max entries looked at, Integer.MAX_VALUE for a full scan
+     * @return the number of entries dropped
+     */
+    public int removeExpired(int max) {
+        long now = System.nanoTime();
+        int removed = 0;
+        int scanned = 0;
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext() && scanned++ < max) {
+            if (it.next().getValue().isExpired(now)) {
+                it.remove();
+                evictions.increment();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Drop a single entry, typically after the underlying data has changed.
+     */
+    public void invalidate(K key) {
+        if (key != null) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Remove an entry and return it, so that only one caller gets a given value.
+     *
+     * @param key key to remove
+     * @return the value, or null if absent or expired
+     */
+    public V remove(K key) {
+        Entry<V> entry = key == null ? null : entries.remove(key);
+        if (entry == null || entry.isExpired(System.nanoTime())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Look at a bounded sample of entries so a full cache never costs a full scan per insert.
+     */
+    private void makeRoom() {
+        long now = System.nanoTime();
+        K victim = null;
+        boolean removed = false;
+        int sampled = 0;
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext() && sampled++ < EVICTION_SAMPLE) {
+            Map.Entry<K, Entry<V>> e = it.next();
+            if (e.getValue().isExpired(now)) {
+                it.remove();
+                evictions.increment();
+                removed = true;
+            } else if (victim == null) {
+                victim = e.getKey();
+            }
+        }
+        if (!removed && victim != null && entries.remove(victim) != null) {
+            evictions.increment();
+        }
+    }
+}
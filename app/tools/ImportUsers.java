@@ -0,0 +1,83 @@
+package tools;
+
+import models.imports.UserImport;
+import play.Application;
+import play.Mode;
+import play.inject.guice.GuiceApplicationBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Command line user import, running {@link UserImport} against the configured database.
+ * <p/>
+ * The last committed line is kept in &lt;file&gt;.progress after each chunk, and a new run
+ * on the same file resumes from it. The progress file is deleted once the import completes.
+ * <p/>
+ * The database must be given explicitly with -Ddb.default.url (and its driver and credentials
+ * if needed): the tool refuses to run against the in-memory default. Pending evolutions are applied.
+ * <p/>
+ * Run with: sbt -Ddb.default.url=jdbc:... "runMain tools.ImportUsers users.csv [csv|json]"
+ * or, from a distribution: bin/acceptto-mfa-java -Ddb.default.url=jdbc:... -main tools.ImportUsers users.csv
+ */
+public class ImportUsers {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ImportUsers <file> [csv|json]");
+            System.exit(2);
+        }
+        String url = System.getProperty("db.default.url");
+        if (url == null || url.isEmpty() || url.startsWith("jdbc:h2:mem:")) {
+            System.err.println("Set the database to import into with -Ddb.default.url=jdbc:...");
+            System.exit(2);
+        }
+        File input = new File(args[0]);
+        UserImport.Format format = args.length > 1
+                ? UserImport.Format.valueOf(args[1].toUpperCase(Locale.ENGLISH))
+                : (input.getName().endsWith(".json") ? UserImport.Format.JSON : UserImport.Format.CSV);
+        final File checkpoint = new File(input.getPath() + ".progress");
+        long skip = checkpoint.exists()
+                ? Long.parseLong(new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8).trim())
+                : 0;
+        if (skip > 0) {
+            System.out.println("Resuming " + input + " after line " + skip);
+        }
+
+        Application app = new GuiceApplicationBuilder().in(new File(".")).in(Mode.PROD)
+                .configure("play.evolutions.db.default.autoApply", true)
+                .build();
+        play.api.Play.start(app.getWrappedApplication());
+        if (!UserImport.claim()) {
+            throw new IllegalStateException("An import is already running");
+        }
+        try {
+            InputStream stream = new FileInputStream(input);
+            try {
+                UserImport.Progress progress = UserImport.fromConfig(format).run(stream, skip, new UserImport.Listener() {
+                    @Override
+                    public void onProgress(UserImport.Progress progress) {
+                        System.out.println(progress);
+                        try {
+                            Files.write(checkpoint.toPath(), Long.toString(progress.committedLine).getBytes(StandardCharsets.UTF_8));
+                        } catch (IOException e) {
+                            System.err.println("Cannot write " + checkpoint + ": " + e.getMessage());
+                        }
+                    }
+                });
+                System.out.println("Done: " + progress);
+                Files.deleteIfExists(checkpoint.toPath());
+            } finally {
+                stream.close();
+            }
+        } finally {
+            UserImport.release();
+            play.api.Play.stop(app.getWrappedApplication());
+        }
+    }
+}
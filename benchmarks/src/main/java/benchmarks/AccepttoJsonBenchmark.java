@@ -0,0 +1,49 @@
+package benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import models.acceptto.CheckResult;
+import models.acceptto.MfaClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import play.libs.Json;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of an /api/v9/check reply: the JsonNode tree the controllers used to build,
+ * against the streaming DTO decoding of MfaClient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AccepttoJsonBenchmark {
+
+    private final byte[] reply = ("{\"status\":\"approved\",\"channel\":\"a1b2c3d4e5f6\","
+            + "\"email\":\"user@example.com\",\"created_at\":\"2016-05-02T10:00:00Z\","
+            + "\"device\":{\"name\":\"iPhone\",\"os\":\"iOS\"}}").getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public String jsonTree() {
+        JsonNode json = Json.parse(new ByteArrayInputStream(reply));
+        return json.get("status").asText();
+    }
+
+    @Benchmark
+    public String streamingDto() throws IOException {
+        CheckResult result = MfaClient.decode(new ByteArrayInputStream(reply), CheckResult.class);
+        return result.status;
+    }
+}
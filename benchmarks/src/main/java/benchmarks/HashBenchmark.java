@@ -0,0 +1,49 @@
+package benchmarks;
+
+import models.utils.AppException;
+import models.utils.Hash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of hashing and verifying a password at several bcrypt work factors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"8", "10", "12"})
+    public int logRounds;
+
+    private String hash;
+
+    @Setup
+    public void setUp() throws AppException {
+        hash = Hash.createPassword("fooTest", logRounds);
+    }
+
+    @Benchmark
+    public String createPassword() throws AppException {
+        return Hash.createPassword("fooTest", logRounds);
+    }
+
+    @Benchmark
+    public boolean checkPassword() {
+        return Hash.checkPassword("fooTest", hash);
+    }
+}
@@ -0,0 +1,153 @@
+package benchmarks;
+
+import models.LocalUser;
+import models.UserPrincipal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import play.db.DB;
+import play.test.FakeApplication;
+import play.test.Helpers;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LocalUser finders against an in-memory H2 database holding many users.
+ * <p/>
+ * With indexed=false the indexes of evolution 3 are dropped, to compare the mfa_email and
+ * confirmation_token finders against a full scan of local_user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LocalUserFinderBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    @Param({"true", "false"})
+    public boolean indexed;
+
+    private FakeApplication app;
+
+    @Setup
+    public void setUp() throws SQLException {
+        Map<String, Object> conf = new HashMap<String, Object>(Helpers.inMemoryDatabase());
+        conf.put("play.evolutions.db.default.autoApply", true);
+        conf.put("logger.application", "WARN");
+        app = Helpers.fakeApplication(conf);
+        Helpers.start(app);
+        populate(users);
+        if (!indexed) {
+            dropIndexes();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Helpers.stop(app);
+    }
+
+    /**
+     * Insert users with predictable emails, tokens and MFA emails, in batches.
+     */
+    static void populate(int users) throws SQLException {
+        try (Connection connection = DB.getConnection(false);
+             PreparedStatement insert = connection.prepareStatement(
+                     "insert into local_user (id, email, fullname, confirmation_token, password_hash, validated, mfa_email, mfa_authenticated) "
+                             + "values (?, ?, ?, ?, ?, true, ?, false)")) {
+            for (int i = 0; i < users; i++) {
+                insert.setLong(1, i);
+                insert.setString(2, email(i));
+                insert.setString(3, "User " + i);
+                insert.setString(4, "token" + i);
+                insert.setString(5, "$2a$10$abcdefghijklmnopqrstuuFhC4A1fQyfQfPHCwHRnv8yPKz2eOea");
+                insert.setString(6, mfaEmail(i));
+                insert.addBatch();
+                if (i % 1000 == 999) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+    }
+
+    /**
+     * Drop the indexes added by evolution 3.
+     */
+    static void dropIndexes() throws SQLException {
+        try (Connection connection = DB.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("drop index if exists ix_local_user_mfa_email");
+            statement.execute("drop index if exists ix_local_user_confirmation_token");
+        }
+    }
+
+    static String email(int i) {
+        return "user" + i + "@example.com";
+    }
+
+    static String mfaEmail(int i) {
+        return "mfa" + i + "@example.com";
+    }
+
+    private int randomUser() {
+        return ThreadLocalRandom.current().nextInt(users);
+    }
+
+    @Benchmark
+    public LocalUser findByEmail() {
+        return LocalUser.findByEmail(email(randomUser()));
+    }
+
+    @Benchmark
+    public LocalUser findCredentialsByEmail() {
+        return LocalUser.findCredentialsByEmail(email(randomUser()));
+    }
+
+    @Benchmark
+    public UserPrincipal findPrincipalByEmail() {
+        return LocalUser.findPrincipalByEmail(email(randomUser()));
+    }
+
+    @Benchmark
+    public LocalUser findByMfaEmail() {
+        return LocalUser.findByMfaEmail(mfaEmail(randomUser()));
+    }
+
+    @Benchmark
+    public UserPrincipal findPrincipalByMfaEmail() {
+        return LocalUser.findPrincipalByMfaEmail(mfaEmail(randomUser()));
+    }
+
+    @Benchmark
+    public LocalUser findByConfirmationToken() {
+        return LocalUser.findByConfirmationToken("token" + randomUser());
+    }
+
+    @Benchmark
+    public LocalUser findByFullname() {
+        return LocalUser.findByFullname("User " + randomUser());
+    }
+}
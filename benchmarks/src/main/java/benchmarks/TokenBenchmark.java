@@ -0,0 +1,49 @@
+package benchmarks;
+
+import models.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the token expiry check, which computes the expiration time on each call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TokenBenchmark {
+
+    private Token fresh;
+    private Token old;
+
+    @Setup
+    public void setUp() {
+        fresh = new Token();
+        fresh.dateCreation = new Date();
+        old = new Token();
+        old.dateCreation = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3));
+    }
+
+    @Benchmark
+    public boolean isExpiredFresh() {
+        return fresh.isExpired();
+    }
+
+    @Benchmark
+    public boolean isExpiredOld() {
+        return old.isExpired();
+    }
+}
@@ -0,0 +1,19 @@
+# --- Second-factor state of logged-in sessions, used when auth.store.mode=jdbc
+
+# --- !Ups
+
+create table pending_auth (
+  id                        varchar(64) not null,
+  email                     varchar(255),
+  channel                   varchar(255),
+  state                     varchar(16),
+  expires_at                timestamp,
+  constraint ck_pending_auth_state check (state in ('PENDING','APPROVED','REJECTED')),
+  constraint pk_pending_auth primary key (id))
+;
+
+create index ix_pending_auth_expires_at on pending_auth (expires_at);
+
+# --- !Downs
+
+drop table if exists pending_auth;
@@ -0,0 +1,13 @@
+# --- Indexes for the LocalUser finders that don't go through a unique constraint
+
+# --- !Ups
+
+create index ix_local_user_mfa_email on local_user (mfa_email);
+
+create index ix_local_user_confirmation_token on local_user (confirmation_token);
+
+# --- !Downs
+
+drop index if exists ix_local_user_mfa_email;
+
+drop index if exists ix_local_user_confirmation_token;
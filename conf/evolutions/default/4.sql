@@ -0,0 +1,9 @@
+# --- Index for the purge of expired tokens
+
+# --- !Ups
+
+create index ix_token_date_creation on token (date_creation);
+
+# --- !Downs
+
+drop index if exists ix_token_date_creation;
@@ -0,0 +1,17 @@
+# --- Append-only audit log of the authentication steps
+
+# --- !Ups
+
+create table audit_event (
+  id                        bigint auto_increment not null,
+  created_at                timestamp not null,
+  type                      varchar(16) not null,
+  email                     varchar(255),
+  ip                        varchar(64),
+  outcome                   varchar(32),
+  constraint pk_audit_event primary key (id))
+;
+
+# --- !Downs
+
+drop table if exists audit_event;
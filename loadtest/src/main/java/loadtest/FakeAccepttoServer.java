@@ -0,0 +1,107 @@
+package loadtest;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import play.libs.F;
+import play.libs.Json;
+import play.mvc.Controller;
+import play.mvc.Result;
+import play.mvc.Results;
+import play.routing.RoutingDsl;
+import play.server.Server;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for mfa.acceptto.com, serving the /api/v9 endpoints the app calls.
+ * <p/>
+ * Latency, error rate and approval rate are set with system properties:
+ * <ul>
+ * <li>fake.latency: base latency in ms (default 50)</li>
+ * <li>fake.jitter: random extra latency in ms (default 20)</li>
+ * <li>fake.errorRate: share of requests answered with a 500 (default 0)</li>
+ * <li>fake.approveRate: share of checks answered "approved", the rest "rejected" (default 1)</li>
+ * <li>fake.registeredRate: share of is_user_valid answers with a finished registration (default 1)</li>
+ * </ul>
+ * Run with: sbt "loadtest/runMain loadtest.FakeAccepttoServer 9999"
+ */
+public class FakeAccepttoServer {
+
+    private static final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
+
+    private static final long latency = Long.getLong("fake.latency", 50L);
+    private static final long jitter = Long.getLong("fake.jitter", 20L);
+    private static final double errorRate = Double.parseDouble(System.getProperty("fake.errorRate", "0"));
+    private static final double approveRate = Double.parseDouble(System.getProperty("fake.approveRate", "1"));
+    private static final double registeredRate = Double.parseDouble(System.getProperty("fake.registeredRate", "1"));
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9999;
+        Server server = start(port);
+        System.out.println("Fake Acceptto listening on http://localhost:" + port);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    }
+
+    public static Server start(int port) {
+        return Server.forRouter(new RoutingDsl()
+                .POST("/api/v9/is_user_valid").routeAsync(() -> reply(isUserValid()))
+                .POST("/api/v9/authenticate_with_options").routeAsync(() -> reply(authenticate()))
+                .POST("/api/v9/check").routeAsync(() -> reply(check()))
+                .POST("/api/v9/get_user_by_websocket_channel").routeAsync(() -> reply(userByChannel()))
+                .GET("/mfa/index").routeTo(() -> Results.ok("Fake Acceptto waiting page"))
+                .GET("/mfa/waiting").routeTo(() -> Results.ok("Fake Acceptto waiting page"))
+                .build(), port);
+    }
+
+    private static ObjectNode isUserValid() {
+        ObjectNode json = Json.newObject();
+        json.put("valid", true);
+        json.put("registration_state", chance(registeredRate) ? "finished" : "started");
+        return json;
+    }
+
+    private static ObjectNode authenticate() {
+        ObjectNode json = Json.newObject();
+        json.put("success", true);
+        json.put("channel", UUID.randomUUID().toString().replace("-", ""));
+        return json;
+    }
+
+    private static ObjectNode check() {
+        ObjectNode json = Json.newObject();
+        json.put("status", chance(approveRate) ? "approved" : "rejected");
+        return json;
+    }
+
+    /**
+     * Channels of the form "email:user@example.com" resolve to that user; others are unknown.
+     */
+    private static ObjectNode userByChannel() {
+        String channel = Controller.request().getQueryString("websocket_channel");
+        ObjectNode json = Json.newObject();
+        if (channel != null && channel.startsWith("email:")) {
+            json.put("success", true);
+            json.put("message", "");
+            json.put("user_email", channel.substring("email:".length()));
+        } else {
+            json.put("success", false);
+            json.put("message", "Unknown channel");
+        }
+        return json;
+    }
+
+    private static F.Promise<Result> reply(final ObjectNode json) {
+        final F.RedeemablePromise<Result> promise = F.RedeemablePromise.empty();
+        final Result result = chance(errorRate) ? Results.internalServerError("Fake failure") : Results.ok(json);
+        long delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        timer.schedule(() -> promise.success(result), delay, TimeUnit.MILLISECONDS);
+        return promise;
+    }
+
+    private static boolean chance(double rate) {
+        return rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate;
+    }
+}
@@ -0,0 +1,48 @@
+package loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Collects the latencies of one route and reports throughput and percentiles.
+ */
+public class LatencyRecorder {
+
+    private final String route;
+    private long[] samples = new long[1024];
+    private int count;
+    private int errors;
+
+    public LatencyRecorder(String route) {
+        this.route = route;
+    }
+
+    public synchronized void record(long nanos, boolean success) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        if (!success) {
+            errors++;
+        }
+    }
+
+    /**
+     * @param elapsedSeconds duration of the run
+     * @return one report line: requests/s, errors, p50, p99 and p99.9 in milliseconds
+     */
+    public synchronized String report(double elapsedSeconds) {
+        if (count == 0) {
+            return String.format("%-24s no requests", route);
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return String.format("%-24s %8d req %9.1f req/s %6d err   p50 %8.2f ms   p99 %8.2f ms   p999 %8.2f ms",
+                route, count, count / elapsedSeconds, errors,
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1000000.0;
+    }
+}
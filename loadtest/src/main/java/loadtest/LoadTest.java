@@ -0,0 +1,228 @@
+package loadtest;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.Response;
+import com.ning.http.client.cookie.Cookie;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives signup, login, MFA approval and dashboard through the real routes of a running app.
+ * <p/>
+ * Each virtual user signs up, makes sure MFA is enabled on its account (POST /auth/mfa/enable
+ * if the signup didn't enable it), then loops over login, /auth/mfa_check and the dashboard.
+ * A login counts only if it started an MFA request, and a check only if it was approved and
+ * redirected to the dashboard, so every flow goes through PendingAuth and both Acceptto calls.
+ * The app must be started with mfa.site pointing to a {@link FakeAccepttoServer}.
+ * Settings are system properties:
+ * <ul>
+ * <li>load.target: base URL of the app (default http://localhost:9000)</li>
+ * <li>load.users: number of concurrent virtual users (default 20)</li>
+ * <li>load.duration: run time in seconds (default 60)</li>
+ * <li>load.loginsPerSignup: logins a virtual user does before signing up again (default 5)</li>
+ * </ul>
+ * Run with: sbt -Dload.users=50 "loadtest/runMain loadtest.LoadTest"
+ */
+public class LoadTest {
+
+    private static final String PASSWORD = "LoadTest-123";
+    private static final String SESSION_COOKIE = "PLAY_SESSION";
+
+    /**
+     * What makes a response a success for a step of the flow.
+     */
+    private interface Expectation {
+        boolean met(Response response);
+    }
+
+    private static final Expectation ANSWERED = new Expectation() {
+        @Override
+        public boolean met(Response response) {
+            return response.getStatusCode() < 400;
+        }
+    };
+
+    /**
+     * The login asked Acceptto for an approval: the MFA channel is in the session.
+     */
+    private static final Expectation MFA_STARTED = new Expectation() {
+        @Override
+        public boolean met(Response response) {
+            return response.getStatusCode() < 400 && sessionHasChannel(response);
+        }
+    };
+
+    /**
+     * Redirected to the dashboard, not back to the login page.
+     */
+    private static final Expectation TO_DASHBOARD = new Expectation() {
+        @Override
+        public boolean met(Response response) {
+            String location = response.getHeader("Location");
+            return response.getStatusCode() >= 300 && response.getStatusCode() < 400
+                    && location != null && location.endsWith("/mfa");
+        }
+    };
+
+    private final String target = System.getProperty("load.target", "http://localhost:9000");
+    private final int users = Integer.getInteger("load.users", 20);
+    private final long durationSeconds = Long.getLong("load.duration", 60L);
+    private final int loginsPerSignup = Integer.getInteger("load.loginsPerSignup", 5);
+
+    private final Map<String, LatencyRecorder> routes = new LinkedHashMap<String, LatencyRecorder>();
+    private final AtomicLong flows = new AtomicLong();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AsyncHttpClient client = new AsyncHttpClient(new AsyncHttpClientConfig.Builder()
+            .setFollowRedirect(false)
+            .setMaxConnections(1000)
+            .setAllowPoolingConnections(true)
+            .setRequestTimeout(30000)
+            .build());
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+    }
+
+    public LoadTest() {
+        for (String route : new String[]{"POST /signup", "POST /auth/mfa/enable", "POST /login", "GET /auth/mfa_check", "GET /mfa"}) {
+            routes.put(route, new LatencyRecorder(route));
+        }
+    }
+
+    public void run() throws InterruptedException {
+        System.out.println("Load test of " + target + ": " + users + " users for " + durationSeconds + "s");
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        final CountDownLatch done = new CountDownLatch(users);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < users; i++) {
+            final int vu = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        virtualUser(vu, deadline);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "vu-" + vu);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d login flows in %.1fs: %.1f flows/s", flows.get(), elapsed, flows.get() / elapsed));
+        for (LatencyRecorder recorder : routes.values()) {
+            System.out.println(recorder.report(elapsed));
+        }
+        client.close();
+    }
+
+    private void virtualUser(int vu, long deadline) {
+        int iteration = 0;
+        while (System.nanoTime() < deadline) {
+            Map<String, String> cookies = new LinkedHashMap<String, String>();
+            String email = "load-" + runId + "-" + vu + "-" + iteration++ + "@example.com";
+
+            if (!call("POST /signup", cookies, client.preparePost(target + "/signup")
+                    .addFormParam("email", email)
+                    .addFormParam("fullname", email)
+                    .addFormParam("inputPassword", PASSWORD), ANSWERED)
+                    || !enableMfa(email, cookies)) {
+                continue;
+            }
+
+            for (int login = 0; login < loginsPerSignup && System.nanoTime() < deadline; login++) {
+                cookies.clear();
+                boolean ok = call("POST /login", cookies, login(email), MFA_STARTED)
+                        && call("GET /auth/mfa_check", cookies, client.prepareGet(target + "/auth/mfa_check"), TO_DASHBOARD)
+                        && call("GET /mfa", cookies, client.prepareGet(target + "/mfa"), ANSWERED);
+                if (ok) {
+                    flows.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Log in once and, unless the signup already enabled MFA, enable it with the account email,
+     * which the fake server reports as a registered Acceptto user.
+     *
+     * @return true if the next logins will go through MFA
+     */
+    private boolean enableMfa(String email, Map<String, String> cookies) {
+        cookies.clear();
+        Response response = execute(cookies, login(email));
+        if (response == null || response.getStatusCode() >= 400) {
+            return false;
+        }
+        if (sessionHasChannel(response)) {
+            return true;
+        }
+        return call("POST /auth/mfa/enable", cookies, client.preparePost(target + "/auth/mfa/enable")
+                .addFormParam("mfa_email", email), TO_DASHBOARD);
+    }
+
+    private AsyncHttpClient.BoundRequestBuilder login(String email) {
+        return client.preparePost(target + "/login")
+                .addFormParam("email", email)
+                .addFormParam("password", PASSWORD);
+    }
+
+    private static boolean sessionHasChannel(Response response) {
+        for (Cookie cookie : response.getCookies()) {
+            if (SESSION_COOKIE.equals(cookie.getName()) && cookie.getValue().contains("channel=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send a request of a route, record its latency and whether it met the expectation.
+     */
+    private boolean call(String route, Map<String, String> cookies, AsyncHttpClient.BoundRequestBuilder request,
+                         Expectation expectation) {
+        long start = System.nanoTime();
+        Response response = execute(cookies, request);
+        boolean success = response != null && expectation.met(response);
+        routes.get(route).record(System.nanoTime() - start, success);
+        return success;
+    }
+
+    /**
+     * Send a request with the cookies of the virtual user and keep the cookies it sets.
+     *
+     * @return the response, or null if the request failed
+     */
+    private Response execute(Map<String, String> cookies, AsyncHttpClient.BoundRequestBuilder request) {
+        if (!cookies.isEmpty()) {
+            StringBuilder header = new StringBuilder();
+            for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+                if (header.length() > 0) {
+                    header.append("; ");
+                }
+                header.append(cookie.getKey()).append('=').append(cookie.getValue());
+            }
+            request.addHeader("Cookie", header.toString());
+        }
+
+        try {
+            Response response = request.execute().get();
+            for (Cookie cookie : response.getCookies()) {
+                cookies.put(cookie.getName(), cookie.getValue());
+            }
+            return response;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
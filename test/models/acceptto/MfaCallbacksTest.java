@@ -0,0 +1,116 @@
+package models.acceptto;
+
+import org.junit.Assert;
+import org.junit.Test;
+import play.Application;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.running;
+
+public class MfaCallbacksTest {
+
+    private static final String SECRET = "callback-secret";
+
+    @Test
+    public void signsWithHmacSha256() {
+        // RFC 4231, test case 2
+        Assert.assertEquals("5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843",
+                MfaCallbacks.sign("Jefe", "what do ya want for nothing?".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void refusesABadSignature() {
+        running(application(), new Runnable() {
+            @Override
+            public void run() {
+                byte[] body = callback(newChannel(), MfaStatusHub.APPROVED, now());
+                Assert.assertEquals(MfaCallbacks.Outcome.INVALID_SIGNATURE,
+                        MfaCallbacks.handle(body, MfaCallbacks.sign("another-secret", body)));
+                Assert.assertEquals(MfaCallbacks.Outcome.INVALID_SIGNATURE, MfaCallbacks.handle(body, null));
+            }
+        });
+    }
+
+    @Test
+    public void refusesAnExpiredCallback() {
+        running(application(), new Runnable() {
+            @Override
+            public void run() {
+                byte[] body = callback(newChannel(), MfaStatusHub.APPROVED, now() - 3600);
+                Assert.assertEquals(MfaCallbacks.Outcome.EXPIRED, MfaCallbacks.handle(body, signed(body)));
+            }
+        });
+    }
+
+    @Test
+    public void ignoresAReplay() {
+        running(application(), new Runnable() {
+            @Override
+            public void run() {
+                String channel = newChannel();
+                byte[] body = callback(channel, MfaStatusHub.APPROVED, now());
+                Assert.assertEquals(MfaCallbacks.Outcome.ACCEPTED, MfaCallbacks.handle(body, signed(body)));
+                Assert.assertEquals(MfaCallbacks.Outcome.DUPLICATE, MfaCallbacks.handle(body, signed(body)));
+                Assert.assertEquals(MfaStatusHub.APPROVED, MfaStatusHub.terminalStatus(channel));
+            }
+        });
+    }
+
+    @Test
+    public void keepsTheFirstOutcomeOfAChannel() {
+        running(application(), new Runnable() {
+            @Override
+            public void run() {
+                String channel = newChannel();
+                byte[] approved = callback(channel, MfaStatusHub.APPROVED, now());
+                byte[] rejected = callback(channel, MfaStatusHub.REJECTED, now());
+                Assert.assertEquals(MfaCallbacks.Outcome.ACCEPTED, MfaCallbacks.handle(approved, signed(approved)));
+                Assert.assertEquals(MfaCallbacks.Outcome.CONFLICT, MfaCallbacks.handle(rejected, signed(rejected)));
+                Assert.assertEquals(MfaStatusHub.APPROVED, MfaStatusHub.terminalStatus(channel));
+            }
+        });
+    }
+
+    @Test
+    public void refusesAMalformedBody() {
+        running(application(), new Runnable() {
+            @Override
+            public void run() {
+                byte[] notJson = "channel=abc".getBytes(StandardCharsets.UTF_8);
+                byte[] unknownStatus = callback(newChannel(), "pending", now());
+                Assert.assertEquals(MfaCallbacks.Outcome.MALFORMED, MfaCallbacks.handle(notJson, signed(notJson)));
+                Assert.assertEquals(MfaCallbacks.Outcome.MALFORMED, MfaCallbacks.handle(unknownStatus, signed(unknownStatus)));
+            }
+        });
+    }
+
+    private static Application application() {
+        Map<String, Object> conf = new HashMap<String, Object>();
+        conf.put("mfa.app.secret", SECRET);
+        conf.put("mfa.push.enabled", false);
+        conf.put("hash.bcrypt.cost", 4);
+        return fakeApplication(conf);
+    }
+
+    private static String signed(byte[] body) {
+        return "sha256=" + MfaCallbacks.sign(SECRET, body);
+    }
+
+    private static byte[] callback(String channel, String status, long timestamp) {
+        return ("{\"channel\":\"" + channel + "\",\"status\":\"" + status + "\",\"timestamp\":" + timestamp + "}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String newChannel() {
+        return UUID.randomUUID().toString();
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
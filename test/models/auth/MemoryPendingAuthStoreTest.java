@@ -0,0 +1,33 @@
+package models.auth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemoryPendingAuthStoreTest {
+
+    @Test
+    public void pendingFloodDoesNotEvictApprovedSessions() {
+        MemoryPendingAuthStore store = new MemoryPendingAuthStore(10, 5, 60000L);
+        Assert.assertTrue(store.put("approved", new PendingAuth("a@example.com", null, PendingAuth.State.APPROVED), 60000L));
+
+        int stored = 0;
+        for (int i = 0; i < 100; i++) {
+            if (store.put("pending" + i, new PendingAuth("b@example.com", null, PendingAuth.State.PENDING), 60000L)) {
+                stored++;
+            }
+        }
+        Assert.assertEquals(5, stored);
+        Assert.assertEquals(PendingAuth.State.APPROVED, store.get("approved").state);
+        // live pending states are kept, not replaced by newer ones
+        Assert.assertNotNull(store.get("pending0"));
+    }
+
+    @Test
+    public void approvalMovesTheStateOutOfThePendingBound() {
+        MemoryPendingAuthStore store = new MemoryPendingAuthStore(10, 1, 60000L);
+        Assert.assertTrue(store.put("s1", new PendingAuth("a@example.com", null, PendingAuth.State.PENDING), 60000L));
+        Assert.assertTrue(store.put("s1", new PendingAuth("a@example.com", "c", PendingAuth.State.APPROVED), 60000L));
+        Assert.assertTrue(store.put("s2", new PendingAuth("b@example.com", null, PendingAuth.State.PENDING), 60000L));
+        Assert.assertEquals(PendingAuth.State.APPROVED, store.get("s1").state);
+    }
+}
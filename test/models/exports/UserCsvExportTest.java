@@ -0,0 +1,21 @@
+package models.exports;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UserCsvExportTest {
+
+    @Test
+    public void quotesFieldsOnlyWhenNeeded() {
+        Assert.assertEquals("alice@example.com", UserCsvExport.escape("alice@example.com"));
+        Assert.assertEquals("", UserCsvExport.escape(null));
+        Assert.assertEquals("\"Doe, John\"", UserCsvExport.escape("Doe, John"));
+        Assert.assertEquals("\"say \"\"hi\"\"\"", UserCsvExport.escape("say \"hi\""));
+    }
+
+    @Test
+    public void neutralizesFormulas() {
+        Assert.assertEquals("'=1+1", UserCsvExport.escape("=1+1"));
+        Assert.assertEquals("\"'=SUM(A1,A2)\"", UserCsvExport.escape("=SUM(A1,A2)"));
+    }
+}
@@ -22,4 +22,25 @@ public class HashTest {
 
         Assert.assertFalse("Password matches but should not match", badPassword);
     }
+
+    @Test
+    public void readsTheCostOfAHash() throws AppException {
+        Assert.assertEquals(4, Hash.costOf(Hash.createPassword("fooTest", 4)));
+        Assert.assertEquals(-1, Hash.costOf("not a hash"));
+        Assert.assertEquals(-1, Hash.costOf(null));
+    }
+
+    @Test
+    public void onlyWeakerHashesAreRehashed() throws AppException {
+        Assert.assertTrue(Hash.needsRehash(Hash.createPassword("fooTest", Hash.logRounds() - 1)));
+        Assert.assertFalse(Hash.needsRehash(Hash.createPassword("fooTest", Hash.logRounds())));
+        Assert.assertFalse(Hash.needsRehash(Hash.createPassword("fooTest", Hash.logRounds() + 1)));
+    }
+
+    @Test
+    public void calibrationStaysWithinBounds() {
+        Assert.assertEquals(4, Hash.calibrate(0, 4, 8));
+        int cost = Hash.calibrate(10000, 4, 6);
+        Assert.assertEquals(6, cost);
+    }
 }
@@ -0,0 +1,22 @@
+package models.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void recordsIntoTheRightBucket() {
+        Histogram histogram = new Histogram();
+        histogram.record(50000L);          // 0.05ms, first bucket
+        histogram.record(100000L);         // exactly on the first bound
+        histogram.record(2000000L);        // 2ms, le=0.0025
+        histogram.record(60000000000L);    // 60s, above the last bound
+
+        long[] counts = histogram.bucketCounts();
+        Assert.assertEquals(2, counts[0]);
+        Assert.assertEquals(1, counts[Histogram.bucketOf(2000000L)]);
+        Assert.assertEquals(1, counts[counts.length - 1]);
+        Assert.assertEquals(60.00215, histogram.sumSeconds(), 1e-9);
+    }
+}
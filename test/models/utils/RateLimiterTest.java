@@ -0,0 +1,30 @@
+package models.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiterTest {
+
+    @Test
+    public void allowsTheBurstThenWaits() {
+        RateLimiter limiter = new RateLimiter(2, 1, TimeUnit.MINUTES, 10);
+        Assert.assertEquals(0, limiter.acquire("a"));
+        Assert.assertEquals(0, limiter.acquire("a"));
+        Assert.assertTrue(limiter.acquire("a") > 0);
+        Assert.assertEquals(0, limiter.acquire("b"));
+    }
+
+    @Test
+    public void churningKeysDoesNotResetAThrottledKey() {
+        RateLimiter limiter = new RateLimiter(1, 1, TimeUnit.MINUTES, 2);
+        Assert.assertEquals(0, limiter.acquire("attacker"));
+        Assert.assertTrue(limiter.acquire("attacker") > 0);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire("churn" + i);
+        }
+        Assert.assertTrue(limiter.size() <= 2);
+        Assert.assertTrue(limiter.acquire("attacker") > 0);
+    }
+}
@@ -0,0 +1,65 @@
+package models.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RingBufferTest {
+
+    @Test
+    public void refusesItemsWhenFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+        Assert.assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(buffer.offer(i));
+        }
+        Assert.assertFalse(buffer.offer(4));
+        Assert.assertEquals(4, buffer.size());
+
+        Assert.assertEquals(Integer.valueOf(0), buffer.poll());
+        Assert.assertTrue(buffer.offer(4));
+    }
+
+    @Test
+    public void drainsInOrderAcrossLaps() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+        List<Integer> drained = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            buffer.offer(i);
+            if (i % 3 == 2) {
+                buffer.drainTo(drained, 2);
+            }
+        }
+        buffer.drainTo(drained, 100);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(i);
+        }
+        Assert.assertEquals(expected, drained);
+        Assert.assertNull(buffer.poll());
+    }
+
+    @Test
+    public void keepsEveryItemFromConcurrentProducers() throws InterruptedException {
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(1 << 16);
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        buffer.offer(i);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        List<Integer> drained = new ArrayList<Integer>();
+        Assert.assertEquals(40000, buffer.drainTo(drained, Integer.MAX_VALUE));
+    }
+}
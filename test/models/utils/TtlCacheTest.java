@@ -0,0 +1,48 @@
+package models.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TtlCacheTest {
+
+    @Test
+    public void hitsAndInvalidation() {
+        TtlCache<String, String> cache = new TtlCache<String, String>(10, 1, TimeUnit.MINUTES);
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", "1");
+        Assert.assertEquals("1", cache.get("a"));
+        cache.invalidate("a");
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void expiredEntriesAreNotReturned() {
+        TtlCache<String, String> cache = new TtlCache<String, String>(10, 1, TimeUnit.MINUTES);
+        cache.put("a", "1", 0, TimeUnit.MILLISECONDS);
+        Assert.assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void putIfAbsentKeepsTheLiveValue() {
+        TtlCache<String, String> cache = new TtlCache<String, String>(10, 1, TimeUnit.MINUTES);
+        Assert.assertNull(cache.putIfAbsent("a", "1"));
+        Assert.assertEquals("1", cache.putIfAbsent("a", "2"));
+        cache.put("b", "1", 0, TimeUnit.MILLISECONDS);
+        Assert.assertNull(cache.putIfAbsent("b", "2"));
+        Assert.assertEquals("2", cache.get("b"));
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        TtlCache<Integer, Integer> cache = new TtlCache<Integer, Integer>(5, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+        Assert.assertTrue(cache.size() <= 5);
+        Assert.assertEquals(95, cache.evictions());
+    }
+}